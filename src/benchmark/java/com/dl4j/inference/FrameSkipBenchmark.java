@@ -0,0 +1,68 @@
+package com.dl4j.inference;
+
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the SEEK and DECODE skip strategies of {@link FrameDecoder} on a local video,
+ * one operation decodes the whole video.
+ * Usage: mvn -P benchmark package exec:exec -Dbenchmark="FrameSkipBenchmark -p videoPath=clip.mp4"
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameSkipBenchmark {
+
+    @Param("")
+    public String videoPath;
+
+    @Param("5")
+    public int skipFrame;
+
+    @Param("250")
+    public int gopSize;
+
+    @Param({"SEEK", "DECODE"})
+    public FrameDecoder.SkipStrategy skipStrategy;
+
+    @Setup
+    public void setup() {
+        if(videoPath.isEmpty()) {
+            throw new IllegalArgumentException("Set the video with -p videoPath=...");
+        }
+    }
+
+    @Benchmark
+    public int decodeAll() throws Exception {
+        final FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(videoPath);
+        frameGrabber.start();
+
+        try {
+            final FrameDecoder frameDecoder =
+                    new FrameDecoder(frameGrabber, skipFrame, skipStrategy, gopSize);
+
+            int frames = 0;
+            while(frameDecoder.next() != null) {
+                frames++;
+            }
+            return frames;
+        } finally {
+            frameGrabber.stop();
+            frameGrabber.release();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.dl4j.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare {@link NonMaxSuppression} with the stream based suppression that
+ * ObjectDetectionInference used before, on random boxes of a 26x13 grid.
+ * Usage: mvn -P benchmark package exec:exec -Dbenchmark=NonMaxSuppressionBenchmark
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NonMaxSuppressionBenchmark {
+
+    private static final int GRID_WIDTH = 26;
+    private static final int GRID_HEIGHT = 13;
+
+    @Param("1690")
+    public int candidates;
+
+    @Param("30")
+    public int objects;
+
+    private List<DetectedObject> detectedObjects;
+    private Detections detections;
+    private NonMaxSuppression nonMaxSuppression;
+    private Detections kept;
+
+    @Setup
+    public void setup() {
+        detectedObjects = randomObjects(new Random(42), candidates, objects);
+        detections = Detections.fromDetectedObjects(detectedObjects, GRID_WIDTH, GRID_HEIGHT);
+        nonMaxSuppression = new NonMaxSuppression(0.5, false, 0);
+        kept = new Detections();
+    }
+
+    @Benchmark
+    public int legacy() {
+        return legacy(detectedObjects);
+    }
+
+    @Benchmark
+    public int nonMaxSuppression() {
+        return nonMaxSuppression.apply(detections, kept).size();
+    }
+
+    @Benchmark
+    public int convertAndNonMaxSuppression() {
+        return nonMaxSuppression.apply(Detections.fromDetectedObjects(
+                detectedObjects, GRID_WIDTH, GRID_HEIGHT), kept).size();
+    }
+
+    /**
+     * Random candidates clustered around a few objects, like the raw output of a YOLO grid.
+     * */
+    private static List<DetectedObject> randomObjects(Random rand, int candidates, int objects) {
+        final double[][] centers = new double[objects][];
+        for(int o = 0; o < objects; o++) {
+            centers[o] = new double[] {
+                    rand.nextDouble() * GRID_WIDTH,
+                    rand.nextDouble() * GRID_HEIGHT,
+                    0.5 + rand.nextDouble() * 4,
+                    0.5 + rand.nextDouble() * 4};
+        }
+
+        final List<DetectedObject> detectedObjects = new ArrayList<>(candidates);
+        for(int i = 0; i < candidates; i++) {
+            final double[] center = centers[rand.nextInt(objects)];
+            detectedObjects.add(new DetectedObject(0,
+                    center[0] + rand.nextGaussian() * 0.2,
+                    center[1] + rand.nextGaussian() * 0.2,
+                    center[2] * (1 + rand.nextGaussian() * 0.1),
+                    center[3] * (1 + rand.nextGaussian() * 0.1),
+                    Nd4j.rand(1, 4),
+                    rand.nextDouble()));
+        }
+        return detectedObjects;
+    }
+
+    /**
+     * The previous implementation: find the max with a stream, drop everything that
+     * overlaps it, repeat until no box is left.
+     * */
+    private static int legacy(List<DetectedObject> predictedObjects) {
+        final ArrayList<DetectedObject> detectedObjects = new ArrayList<>(predictedObjects);
+        int kept = 0;
+        while(!detectedObjects.isEmpty()) {
+            Optional<DetectedObject> maxDetectedObjectOptional =
+                    detectedObjects.stream().max((detectedObject1, detectedObject2) ->
+                            ((Double) detectedObject1.getConfidence())
+                                    .compareTo(detectedObject2.getConfidence()));
+            if(maxDetectedObjectOptional.isPresent()) {
+                DetectedObject maxDetectedObject = maxDetectedObjectOptional.get();
+                legacyRemoveIntersecting(detectedObjects, maxDetectedObject);
+                detectedObjects.remove(maxDetectedObject);
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    private static void legacyRemoveIntersecting(
+            ArrayList<DetectedObject> detectedObjects,
+            DetectedObject maxObjectDetect) {
+
+        double[] bottomRightXYMax = maxObjectDetect.getBottomRightXY();
+        double[] topLeftXYMax = maxObjectDetect.getTopLeftXY();
+
+        List<DetectedObject> removeIntersectingObjects = new ArrayList<>();
+
+        for (DetectedObject detectedObject : detectedObjects) {
+
+            double[] topLeftXY = detectedObject.getTopLeftXY();
+            double[] bottomRightXY = detectedObject.getBottomRightXY();
+
+            double iox1 = Math.max(topLeftXY[0], topLeftXYMax[0]);
+            double ioy1 = Math.max(topLeftXY[1], topLeftXYMax[1]);
+
+            double iox2 = Math.min(bottomRightXY[0], bottomRightXYMax[0]);
+            double ioy2 = Math.min(bottomRightXY[1], bottomRightXYMax[1]);
+
+            double inter_area = (ioy2 - ioy1) * (iox2 - iox1);
+
+            double box1_area =
+                    (bottomRightXYMax[1] - topLeftXYMax[1]) * (bottomRightXYMax[0] - topLeftXYMax[0]);
+            double box2_area =
+                    (bottomRightXY[1] - topLeftXY[1]) * (bottomRightXY[0] - topLeftXY[0]);
+
+            double union_area = box1_area + box2_area - inter_area;
+            double iou = inter_area / union_area;
+
+            if (iou > 0.5) {
+                removeIntersectingObjects.add(detectedObject);
+            }
+        }
+
+        detectedObjects.removeAll(removeIntersectingObjects);
+    }
+}
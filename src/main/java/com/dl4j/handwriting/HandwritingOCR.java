@@ -1,12 +1,18 @@
 package com.dl4j.handwriting;
 
+import com.dl4j.recognition.StubRecognitionBackend;
 
 /**
  * This main program read an image with handwritten text and perform a Rekogntion.
  * This script allow fine tuning to achieve better results with Rekognition.
+ * Run with the argument "stub" to try it without Rekognition.
  * */
 public class HandwritingOCR {
     public static void main (String[] args) {
-        new HandwritingOCRApplication().run();
+        if(args.length > 0 && "stub".equals(args[0])) {
+            new HandwritingOCRApplication(new StubRecognitionBackend(200, 0)).run();
+        } else {
+            new HandwritingOCRApplication().run();
+        }
     }
 }
@@ -1,14 +1,12 @@
 package com.dl4j.handwriting;
 
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.rekognition.AmazonRekognition;
-import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
-import com.amazonaws.services.rekognition.model.DetectTextRequest;
-import com.amazonaws.services.rekognition.model.Image;
 import com.amazonaws.services.rekognition.model.TextDetection;
 import com.amazonaws.util.IOUtils;
+import com.dl4j.metrics.MetricsRegistry;
+import com.dl4j.recognition.TextRecognitionBackend;
+import com.dl4j.recognition.RecognitionService;
+import com.dl4j.recognition.RekognitionBackend;
 import com.dl4j.utils.HandwritingExtractor;
 import com.dl4j.utils.JavaCVHelper;
 import java.awt.BorderLayout;
@@ -20,9 +18,11 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
@@ -35,11 +35,14 @@ import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.border.Border;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileSystemView;
 import org.bytedeco.javacpp.opencv_core;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
 
@@ -48,6 +51,9 @@ import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
  * */
 public class HandwritingOCRApplication {
 
+    private static Logger log =
+            LoggerFactory.getLogger(HandwritingOCRApplication.class);
+
     private int lineImageWidthVal = 800;
     private int lineImageHeightVal = 600;
     private int lineKernelWidthVal = 100;
@@ -71,17 +77,34 @@ public class HandwritingOCRApplication {
     private String filePath;
     private String output;
 
-    private AmazonRekognition rekognition;
+    private TextRecognitionBackend recognitionBackend;
+    private RecognitionService recognitionService;
 
     private JTextArea ocrOutput;
 
+    // Written on the UI thread only. A run whose generation is behind is superseded,
+    // its lines not sent yet are skipped and its results no longer shown.
+    private volatile int ocrGeneration;
+    private CompletableFuture<?>[] ocrLanes = new CompletableFuture<?>[RecognitionService.DEFAULT_MAX_IN_FLIGHT];
+
+    public HandwritingOCRApplication() {
+    }
+
+    /**
+     * @param recognitionBackend    e.g. a StubRecognitionBackend to try the extraction offline
+     * */
+    public HandwritingOCRApplication(TextRecognitionBackend recognitionBackend) {
+        this.recognitionBackend = recognitionBackend;
+    }
+
     public void run() {
-        rekognition =
-                AmazonRekognitionClientBuilder.standard()
-                        .withCredentials(new AWSStaticCredentialsProvider(
-                                new ProfileCredentialsProvider().getCredentials()))
-                        .withRegion(Regions.DEFAULT_REGION)
-                        .build();
+        Arrays.fill(ocrLanes, CompletableFuture.completedFuture(null));
+        if(recognitionBackend == null) {
+            recognitionBackend = RekognitionBackend.create(
+                    Regions.DEFAULT_REGION, (int) RecognitionService.DEFAULT_TIMEOUT_MILLIS);
+        }
+        recognitionService = new RecognitionService(
+                null, recognitionBackend, new MetricsRegistry("handwriting_ocr"));
 
         output = "";
         ocrOutput = new JTextArea(output,10, 20);
@@ -709,7 +732,14 @@ public class HandwritingOCRApplication {
 
 //        Collections.reverse(extractList);
 
-        // Step 2: Extract word to image files
+        // Step 2: Extract word to image files, and read them without waiting for
+        // Rekognition on the UI thread. Each lane sends its lines one after the other,
+        // after the lines of a previous run still in flight, so they hold no permits
+        // of the service any more once the lines of this run are sent.
+        final int generation = ++ocrGeneration;
+        final List<CompletableFuture<List<TextDetection>>> detections = new ArrayList<>();
+        final CompletableFuture<?>[] lanes = ocrLanes.clone();
+        ocrLanes = lanes;
         HandwritingExtractor wordExtractor;
         for(int i=0; i<extractList.size(); i++) {
 
@@ -737,20 +767,51 @@ public class HandwritingOCRApplication {
             byte[] byteArray = IOUtils.toByteArray(
                     new FileInputStream(new File(fileName + ".jpg")));
 
-            Image image = new Image()
-                    .withBytes(ByteBuffer.wrap(byteArray));
-
-            ArrayList<TextDetection> textDetections =
-                    (ArrayList<TextDetection>)
-                            rekognition.detectText(new DetectTextRequest()
-                                    .withImage(image)
-                            ).getTextDetections();
+            final int lane = i % lanes.length;
+            final int line = i;
+            final CompletableFuture<List<TextDetection>> detection = lanes[lane]
+                    .handle((value, throwable) -> null)
+                    .thenCompose(previous -> generation == ocrGeneration ?
+                            recognitionService.detectText(byteArray) :
+                            cancelled());
+            lanes[lane] = detection;
+            detections.add(detection);
+            detection.whenComplete((value, throwable) -> SwingUtilities.invokeLater(() -> {
+                if(generation != ocrGeneration) {
+                    return;
+                }
+                if(throwable != null) {
+                    log.error("Error reading line " + line, throwable);
+                }
+                showDetections(detections);
+            }));
+        }
+    }
 
-            for(TextDetection textDetection: textDetections) {
-                output += textDetection.getDetectedText() +
-                        ", " + textDetection.getType() + "\n";
+    /**
+     * Show the text of the lines read so far, in the order of the lines. Runs on the UI thread.
+     * */
+    private void showDetections(List<CompletableFuture<List<TextDetection>>> detections) {
+        output = "";
+        for(CompletableFuture<List<TextDetection>> detection: detections) {
+            if(!detection.isDone()) {
+                break;
+            }
+            try {
+                for(TextDetection textDetection: detection.join()) {
+                    output += textDetection.getDetectedText() +
+                            ", " + textDetection.getType() + "\n";
+                }
+            } catch(RuntimeException e) {
+                output += "(line not read: " + e.getCause() + ")\n";
             }
-            ocrOutput.setText(output);
         }
+        ocrOutput.setText(output);
+    }
+
+    private static <T> CompletableFuture<T> cancelled() {
+        final CompletableFuture<T> cancelled = new CompletableFuture<>();
+        cancelled.completeExceptionally(new CancellationException("superseded by a newer OCR run"));
+        return cancelled;
     }
 }
@@ -0,0 +1,153 @@
+package com.dl4j.inference;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjust the frame skip interval of a {@link FrameDecoder} from measured latency.
+ *
+ * The controller watches how long a frame takes from decode to publish, and how often
+ * a frame gets published. From the source frame rate it works out the smallest skip
+ * that still keeps up with real time (or with targetFps), and backs off further
+ * while the end-to-end latency is above targetLatencyMillis.
+ * */
+public class AdaptiveFrameSkipController {
+
+    private static Logger log =
+            LoggerFactory.getLogger(AdaptiveFrameSkipController.class);
+
+    // weight of the newest sample in the moving averages
+    private static final double SMOOTHING = 0.2;
+
+    private final double sourceFrameRate;
+    private final long targetLatencyNanos;
+    private final double targetFps;
+    private final int minSkip;
+    private final int maxSkip;
+
+    private final AtomicLong processedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    private volatile int currentSkip;
+    private volatile double averageLatencyNanos;
+    private volatile double averageIntervalNanos;
+    private long lastPublishedNanos;
+
+    /**
+     * @param sourceFrameRate       frame rate reported by the grabber, 0 if unknown
+     * @param targetLatencyMillis   end-to-end latency to stay under
+     * @param targetFps             published frames per second to hold, 0 to only keep up with the source
+     * @param initialSkip           skip interval to start with
+     * @param minSkip               smallest skip interval allowed
+     * @param maxSkip               largest skip interval allowed
+     * */
+    public AdaptiveFrameSkipController(
+            double sourceFrameRate,
+            long targetLatencyMillis,
+            double targetFps,
+            int initialSkip,
+            int minSkip,
+            int maxSkip) {
+        this.sourceFrameRate = sourceFrameRate;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.targetFps = targetFps;
+        this.minSkip = Math.max(1, minSkip);
+        this.maxSkip = Math.max(this.minSkip, maxSkip);
+        this.currentSkip = clamp(initialSkip);
+    }
+
+    /**
+     * Called by the decoder for every frame it threw away.
+     * */
+    public void recordDropped(int frames) {
+        droppedFrames.addAndGet(frames);
+    }
+
+    /**
+     * Called once a frame has been published.
+     * @param decodedNanos  System.nanoTime() at which the frame was decoded
+     * */
+    public synchronized void recordPublished(long decodedNanos) {
+        final long now = System.nanoTime();
+        final long latency = now - decodedNanos;
+
+        if(processedFrames.getAndIncrement() == 0) {
+            averageLatencyNanos = latency;
+        } else {
+            averageLatencyNanos += SMOOTHING * (latency - averageLatencyNanos);
+            final long interval = now - lastPublishedNanos;
+            averageIntervalNanos = averageIntervalNanos == 0 ? interval :
+                    averageIntervalNanos + SMOOTHING * (interval - averageIntervalNanos);
+        }
+        lastPublishedNanos = now;
+
+        adjust();
+    }
+
+    private void adjust() {
+        // Source frames that go by while one frame is processed, i.e. the skip that keeps up
+        int required = minSkip;
+        if(sourceFrameRate > 0 && averageIntervalNanos > 0) {
+            required = (int) Math.ceil(sourceFrameRate * averageIntervalNanos / 1e9);
+        }
+        if(sourceFrameRate > 0 && targetFps > 0) {
+            required = Math.max(required, (int) Math.ceil(sourceFrameRate / targetFps));
+        }
+
+        int skip = currentSkip;
+        if(averageLatencyNanos > targetLatencyNanos) {
+            skip = Math.max(skip + 1, required);
+        } else if(averageLatencyNanos < targetLatencyNanos / 2) {
+            skip = Math.max(skip - 1, required);
+        } else {
+            skip = Math.max(skip, required);
+        }
+        skip = clamp(skip);
+
+        if(skip != currentSkip) {
+            log.debug("Frame skip changed from " + currentSkip + " to " + skip + ", " + this);
+            currentSkip = skip;
+        }
+    }
+
+    private int clamp(int skip) {
+        return Math.min(maxSkip, Math.max(minSkip, skip));
+    }
+
+    public int getCurrentSkip() {
+        return currentSkip;
+    }
+
+    /**
+     * @return  the smoothed decode-to-publish latency, in milliseconds
+     * */
+    public double getLagMillis() {
+        return averageLatencyNanos / 1e6;
+    }
+
+    /**
+     * @return  the smoothed rate at which frames are published
+     * */
+    public double getProcessedFps() {
+        return averageIntervalNanos > 0 ? 1e9 / averageIntervalNanos : 0;
+    }
+
+    public long getProcessedFrames() {
+        return processedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    @Override
+    public String toString() {
+        return "skip=" + currentSkip +
+                ", lag=" + Math.round(getLagMillis()) + "ms" +
+                ", fps=" + String.format("%.1f", getProcessedFps()) +
+                ", processed=" + getProcessedFrames() +
+                ", dropped=" + getDroppedFrames();
+    }
+}
@@ -0,0 +1,208 @@
+package com.dl4j.inference;
+
+import com.dl4j.metrics.LatencyHistogram;
+import com.dl4j.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs decoding, preprocessing, inference and publishing on their own threads.
+ * Stages are connected by bounded queues, so a slow stage blocks the ones in front of it
+ * instead of letting frames pile up in memory.
+ * Every stage has exactly one thread, which keeps the frames in their original order.
+ * With a {@link MetricsRegistry} the time spent in every stage, the frames through it
+ * and the depth of the queue in front of it are recorded.
+ * */
+public class DetectionPipeline {
+
+    private static Logger log =
+            LoggerFactory.getLogger(DetectionPipeline.class);
+
+    private final FrameDecoder frameDecoder;
+    private final int queueCapacity;
+    private final List<String> stageNames = new ArrayList<>();
+    private final List<FrameStage.Batched> stages = new ArrayList<>();
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private final List<Long> batchWaitMillis = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    private MetricsRegistry metrics;
+    private volatile Exception failure;
+
+    public DetectionPipeline(FrameDecoder frameDecoder, int queueCapacity) {
+        this.frameDecoder = frameDecoder;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Record stage latencies as stage_NAME, frame counts as frames_NAME and
+     * queue depths as queue_depth_NAME.
+     * */
+    DetectionPipeline metrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    DetectionPipeline stage(String name, FrameStage stage) {
+        return batchStage(name, 1, 0, tasks -> stage.process(tasks.get(0)));
+    }
+
+    /**
+     * Add a stage that receives up to maxBatchSize consecutive frames at a time.
+     * A batch is handed over as soon as it is full, or once maxWaitMillis passed
+     * since its first frame arrived, whichever comes first.
+     * */
+    DetectionPipeline batchStage(
+            String name,
+            int maxBatchSize,
+            long maxWaitMillis,
+            FrameStage.Batched stage) {
+        stageNames.add(name);
+        stages.add(stage);
+        batchSizes.add(Math.max(1, maxBatchSize));
+        batchWaitMillis.add(Math.max(0, maxWaitMillis));
+        return this;
+    }
+
+    /**
+     * Start all stage threads and wait until the last frame went through the last stage.
+     * @throws Exception    the first error raised by any stage
+     * */
+    public void run() throws Exception {
+
+        BlockingQueue<FrameTask> input = new ArrayBlockingQueue<>(queueCapacity);
+        threads.add(new Thread(decodeLoop(input), "pipeline-decode"));
+
+        for(int i = 0; i < stages.size(); i++) {
+            final BlockingQueue<FrameTask> output = i < stages.size() - 1 ?
+                    new ArrayBlockingQueue<>(queueCapacity) : null;
+            if(metrics != null) {
+                final BlockingQueue<FrameTask> queue = input;
+                metrics.gauge("queue_depth_" + stageNames.get(i), queue::size);
+            }
+            threads.add(new Thread(stageLoop(stageNames.get(i), stages.get(i),
+                    batchSizes.get(i), batchWaitMillis.get(i), input, output),
+                    "pipeline-" + stageNames.get(i)));
+            input = output;
+        }
+
+        for(Thread thread: threads) {
+            thread.start();
+        }
+
+        try {
+            for(Thread thread: threads) {
+                thread.join();
+            }
+        } catch(InterruptedException ie) {
+            abort();
+            Thread.currentThread().interrupt();
+        }
+
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stop every stage, dropping any frames still queued.
+     * */
+    public void abort() {
+        for(Thread thread: threads) {
+            thread.interrupt();
+        }
+    }
+
+    private Runnable decodeLoop(BlockingQueue<FrameTask> output) {
+        final LatencyHistogram latency = metrics != null ? metrics.histogram("stage_decode") : null;
+        return () -> {
+            try {
+                FrameTask task;
+                long start = System.nanoTime();
+                while((task = frameDecoder.next()) != null) {
+                    if(latency != null) {
+                        latency.recordSince(start);
+                    }
+                    output.put(task);
+                    start = System.nanoTime();
+                }
+                output.put(FrameTask.END);
+            } catch(InterruptedException ie) {
+                log.debug("decode stage interrupted");
+            } catch(Exception e) {
+                fail("decode", e);
+            }
+        };
+    }
+
+    private Runnable stageLoop(
+            String name,
+            FrameStage.Batched stage,
+            int maxBatchSize,
+            long maxWaitMillis,
+            BlockingQueue<FrameTask> input,
+            BlockingQueue<FrameTask> output) {
+        final LatencyHistogram latency = metrics != null ? metrics.histogram("stage_" + name) : null;
+        final LongAdder frames = metrics != null ? metrics.counter("frames_" + name) : null;
+        return () -> {
+            try {
+                final List<FrameTask> batch = new ArrayList<>(maxBatchSize);
+                boolean end = false;
+                while(!end) {
+                    FrameTask task = input.take();
+                    final long deadline = System.nanoTime() +
+                            TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+                    while(task != FrameTask.END) {
+                        batch.add(task);
+                        if(batch.size() >= maxBatchSize) {
+                            break;
+                        }
+                        task = input.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if(task == null) {
+                            break;
+                        }
+                    }
+                    end = task == FrameTask.END;
+
+                    if(!batch.isEmpty()) {
+                        final long start = System.nanoTime();
+                        stage.process(batch);
+                        if(latency != null) {
+                            latency.recordSince(start);
+                            frames.add(batch.size());
+                        }
+                        if(output != null) {
+                            for(FrameTask processed: batch) {
+                                output.put(processed);
+                            }
+                        }
+                        batch.clear();
+                    }
+                }
+                if(output != null) {
+                    output.put(FrameTask.END);
+                }
+            } catch(InterruptedException ie) {
+                log.debug(name + " stage interrupted");
+            } catch(Exception e) {
+                fail(name, e);
+            }
+        };
+    }
+
+    private void fail(String name, Exception e) {
+        log.error("Error in " + name + " stage", e);
+        if(failure == null) {
+            failure = e;
+        }
+        abort();
+    }
+}
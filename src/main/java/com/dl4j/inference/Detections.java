@@ -0,0 +1,148 @@
+package com.dl4j.inference;
+
+import java.util.Arrays;
+import java.util.List;
+import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
+
+/**
+ * Bounding boxes of one frame, stored as primitive arrays instead of DetectedObject instances.
+ * Coordinates are relative to the network input, from 0 to 1, so they can be scaled
+ * to any image size when drawing.
+ * */
+public class Detections {
+
+    private int size;
+    private float[] x1;
+    private float[] y1;
+    private float[] x2;
+    private float[] y2;
+    private float[] confidence;
+    private int[] predictedClass;
+
+    public Detections() {
+        this(16);
+    }
+
+    public Detections(int capacity) {
+        capacity = Math.max(1, capacity);
+        x1 = new float[capacity];
+        y1 = new float[capacity];
+        x2 = new float[capacity];
+        y2 = new float[capacity];
+        confidence = new float[capacity];
+        predictedClass = new int[capacity];
+    }
+
+    /**
+     * Convert the output of Yolo2OutputLayer.getPredictedObjects, which is in grid cell units.
+     * */
+    public static Detections fromDetectedObjects(
+            List<DetectedObject> detectedObjects,
+            int gridWidth,
+            int gridHeight) {
+
+        final Detections detections = new Detections(detectedObjects.size());
+        for(DetectedObject detectedObject: detectedObjects) {
+            final double[] xy1 = detectedObject.getTopLeftXY();
+            final double[] xy2 = detectedObject.getBottomRightXY();
+            detections.add(
+                    (float) (xy1[0] / gridWidth),
+                    (float) (xy1[1] / gridHeight),
+                    (float) (xy2[0] / gridWidth),
+                    (float) (xy2[1] / gridHeight),
+                    (float) detectedObject.getConfidence(),
+                    detectedObject.getPredictedClass());
+        }
+        return detections;
+    }
+
+    public void add(float x1, float y1, float x2, float y2, float confidence, int predictedClass) {
+        if(size == this.x1.length) {
+            grow();
+        }
+        this.x1[size] = x1;
+        this.y1[size] = y1;
+        this.x2[size] = x2;
+        this.y2[size] = y2;
+        this.confidence[size] = confidence;
+        this.predictedClass[size] = predictedClass;
+        size++;
+    }
+
+    /**
+     * Copy box i of another set into this one.
+     * */
+    public void add(Detections other, int i) {
+        add(other.x1[i], other.y1[i], other.x2[i], other.y2[i],
+                other.confidence[i], other.predictedClass[i]);
+    }
+
+    /**
+     * Map every box in place with x' = (x - offsetX) * scaleX and y' = (y - offsetY) * scaleY,
+     * e.g. from network input to image coordinates.
+     * */
+    public void transform(float offsetX, float offsetY, float scaleX, float scaleY) {
+        for(int i = 0; i < size; i++) {
+            x1[i] = (x1[i] - offsetX) * scaleX;
+            y1[i] = (y1[i] - offsetY) * scaleY;
+            x2[i] = (x2[i] - offsetX) * scaleX;
+            y2[i] = (y2[i] - offsetY) * scaleY;
+        }
+    }
+
+    private void grow() {
+        final int capacity = x1.length * 2;
+        x1 = Arrays.copyOf(x1, capacity);
+        y1 = Arrays.copyOf(y1, capacity);
+        x2 = Arrays.copyOf(x2, capacity);
+        y2 = Arrays.copyOf(y2, capacity);
+        confidence = Arrays.copyOf(confidence, capacity);
+        predictedClass = Arrays.copyOf(predictedClass, capacity);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public float getX1(int i) {
+        return x1[i];
+    }
+
+    public float getY1(int i) {
+        return y1[i];
+    }
+
+    public float getX2(int i) {
+        return x2[i];
+    }
+
+    public float getY2(int i) {
+        return y2[i];
+    }
+
+    public float getConfidence(int i) {
+        return confidence[i];
+    }
+
+    public int getPredictedClass(int i) {
+        return predictedClass[i];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("[");
+        for(int i = 0; i < size; i++) {
+            if(i > 0) {
+                sb.append(", ");
+            }
+            sb.append(predictedClass[i]).append('@').append(Math.round(confidence[i] * 100))
+                    .append("%(").append(x1[i]).append(',').append(y1[i])
+                    .append(")-(").append(x2[i]).append(',').append(y2[i]).append(')');
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,128 @@
+package com.dl4j.inference;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the frames of many streams to a few inference workers, taking one frame per
+ * stream in turn so a fast or busy stream cannot starve the others.
+ *
+ * Every stream has its own small queue. Live streams replace their oldest queued frame
+ * when the queue is full, so a slow model shows up as dropped frames rather than growing
+ * latency. Other streams, e.g. files, block until there is room again.
+ * */
+class FairFrameScheduler {
+
+    private final int queueCapacity;
+    private final List<ArrayDeque<FrameTask>> queues = new ArrayList<>();
+    private final boolean[] finished;
+    private int activeSources;
+    private int next;
+
+    /**
+     * @param sources       number of streams
+     * @param queueCapacity frames that can wait per stream
+     * */
+    FairFrameScheduler(int sources, int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.finished = new boolean[sources];
+        this.activeSources = sources;
+        for(int i = 0; i < sources; i++) {
+            queues.add(new ArrayDeque<>(this.queueCapacity));
+        }
+    }
+
+    /**
+     * Queue a frame of stream task.source.
+     * @param replaceOldest drop the oldest queued frame instead of waiting when the queue is full
+     * @return  the frame that was dropped to make room, or null
+     * */
+    synchronized FrameTask submit(FrameTask task, boolean replaceOldest)
+            throws InterruptedException {
+        final ArrayDeque<FrameTask> queue = queues.get(task.source);
+        FrameTask dropped = null;
+        if(replaceOldest) {
+            if(queue.size() >= queueCapacity) {
+                dropped = queue.pollFirst();
+            }
+        } else {
+            while(queue.size() >= queueCapacity) {
+                wait();
+            }
+        }
+        queue.addLast(task);
+        notifyAll();
+        return dropped;
+    }
+
+    /**
+     * Mark a stream as ended, once every stream ended take() returns an empty batch.
+     * */
+    synchronized void finish(int source) {
+        if(!finished[source]) {
+            finished[source] = true;
+            activeSources--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for at least one frame, then keep collecting until the batch is full or
+     * maxWaitMillis passed.
+     * @return  up to maxBatchSize frames, empty once every stream ended and was drained
+     * */
+    synchronized List<FrameTask> take(int maxBatchSize, long maxWaitMillis)
+            throws InterruptedException {
+        final List<FrameTask> batch = new ArrayList<>(maxBatchSize);
+
+        while(poll(batch, maxBatchSize) == 0) {
+            if(activeSources == 0) {
+                return Collections.emptyList();
+            }
+            wait();
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        long remaining;
+        while(batch.size() < maxBatchSize && activeSources > 0 &&
+                (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            poll(batch, maxBatchSize);
+        }
+
+        // Wake up producers waiting for room
+        notifyAll();
+        return batch;
+    }
+
+    /**
+     * Take frames round-robin, continuing from the stream after the last one served.
+     * */
+    private int poll(List<FrameTask> batch, int maxBatchSize) {
+        final int before = batch.size();
+        boolean progress = true;
+        while(progress && batch.size() < maxBatchSize) {
+            progress = false;
+            for(int i = 0; i < queues.size() && batch.size() < maxBatchSize; i++) {
+                final FrameTask task = queues.get(next).pollFirst();
+                next = (next + 1) % queues.size();
+                if(task != null) {
+                    batch.add(task);
+                    progress = true;
+                }
+            }
+        }
+        return batch.size() - before;
+    }
+
+    synchronized int getQueuedFrames() {
+        int queued = 0;
+        for(ArrayDeque<FrameTask> queue: queues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+}
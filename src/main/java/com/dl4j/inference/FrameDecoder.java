@@ -0,0 +1,142 @@
+package com.dl4j.inference;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+/**
+ * Pulls every skipFrame-th video frame out of a grabber for the {@link DetectionPipeline}.
+ * The grabber reuses its frame buffer on every grab, so each frame is cloned
+ * before it is handed over to another thread.
+ * */
+public class FrameDecoder {
+
+    /**
+     * How the frames in between two processed frames are skipped.
+     * */
+    public enum SkipStrategy {
+        /** Seek to every processed frame, FFmpeg decodes again from the previous keyframe. */
+        SEEK,
+        /** Keep decoding forward and drop the skipped frames before image conversion. */
+        DECODE
+    }
+
+    private final FrameGrabber frameGrabber;
+    private final int skipFrame;
+    private final SkipStrategy skipStrategy;
+    private final int gopSize;
+    private final double totalFrames;
+
+    private AdaptiveFrameSkipController skipController;
+    private int frameNumber = 1;
+    private int position;
+    private long sequence;
+    // only written by the decoding thread
+    private volatile long skippedFrames;
+
+    public FrameDecoder(FrameGrabber frameGrabber, int skipFrame) {
+        this(frameGrabber, skipFrame, SkipStrategy.SEEK, 0);
+    }
+
+    /**
+     * @param frameGrabber  a started grabber
+     * @param skipFrame     process every skipFrame-th frame
+     * @param skipStrategy  how to get over the skipped frames
+     * @param gopSize       with DECODE, gaps longer than this many frames are still seeked over
+     * */
+    public FrameDecoder(
+            FrameGrabber frameGrabber,
+            int skipFrame,
+            SkipStrategy skipStrategy,
+            int gopSize) {
+        this.frameGrabber = frameGrabber;
+        this.skipFrame = skipFrame;
+        this.skipStrategy = skipStrategy;
+        this.gopSize = gopSize;
+        this.totalFrames = frameGrabber.getLengthInFrames();
+    }
+
+    /**
+     * @return  the next frame to process, or null at the end of the video
+     * */
+    public FrameTask next() throws FrameGrabber.Exception {
+        while(totalFrames <= 0 || frameNumber < totalFrames) {
+
+            final int target = frameNumber;
+            frameNumber += skipController != null ? skipController.getCurrentSkip() : skipFrame;
+
+            if(skipController != null && target > position) {
+                skipController.recordDropped(target - position);
+            }
+            if(!skipTo(target)) {
+                return null;
+            }
+
+            final Frame frame = grabImage();
+            if(frame == null) {
+                return null;
+            }
+            position++;
+            if(frame.image == null) {
+                continue;
+            }
+
+            return new FrameTask(sequence++, frame.clone());
+        }
+        return null;
+    }
+
+    private boolean skipTo(int target) throws FrameGrabber.Exception {
+        final int gap = target - position;
+
+        if(gap > 0) {
+            skippedFrames += gap;
+        }
+
+        if(skipStrategy == SkipStrategy.SEEK || gap < 0 || gap > gopSize) {
+            frameGrabber.setFrameNumber(target);
+            position = target;
+            return true;
+        }
+
+        for(; position < target; position++) {
+            if(dropFrame() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Frame grabImage() throws FrameGrabber.Exception {
+        if(frameGrabber instanceof FFmpegFrameGrabber) {
+            return ((FFmpegFrameGrabber) frameGrabber).grabImage();
+        }
+        return frameGrabber.grab();
+    }
+
+    private Frame dropFrame() throws FrameGrabber.Exception {
+        if(frameGrabber instanceof FFmpegFrameGrabber) {
+            // Decode the video packet but skip the pixel format conversion
+            return ((FFmpegFrameGrabber) frameGrabber).grabFrame(false, true, false, false);
+        }
+        return frameGrabber.grab();
+    }
+
+    /**
+     * Let the controller decide the skip interval instead of the fixed skipFrame.
+     * */
+    public void setSkipController(AdaptiveFrameSkipController skipController) {
+        this.skipController = skipController;
+    }
+
+    /**
+     * @return  frames passed over without processing so far
+     * */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    public SkipStrategy getSkipStrategy() {
+        return skipStrategy;
+    }
+}
@@ -0,0 +1,19 @@
+package com.dl4j.inference;
+
+import java.util.List;
+
+/**
+ * One step of the {@link DetectionPipeline}, e.g. preprocessing or inference.
+ * */
+@FunctionalInterface
+interface FrameStage {
+    void process(FrameTask task) throws Exception;
+
+    /**
+     * A stage that handles several consecutive frames at once, e.g. a batched forward pass.
+     * */
+    @FunctionalInterface
+    interface Batched {
+        void process(List<FrameTask> tasks) throws Exception;
+    }
+}
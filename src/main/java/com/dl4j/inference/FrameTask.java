@@ -0,0 +1,51 @@
+package com.dl4j.inference;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacv.Frame;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * A single video frame travelling through the {@link DetectionPipeline}.
+ * Each stage fills in its own part, so a task is only touched by one thread at a time.
+ * */
+class FrameTask {
+
+    /** Marker put on a queue after the last frame so every stage can shut down in order. */
+    static final FrameTask END = new FrameTask(-1, null);
+
+    final long sequence;
+    final Frame frame;
+    final long decodedNanos = System.nanoTime();
+    /** Index of the stream the frame came from, in multi-stream mode. */
+    int source;
+
+    Mat mat;
+    /** False when the detections are predicted by the {@link ObjectTracker} instead. */
+    boolean inferenceRequired = true;
+    /** Result of the {@link MotionGate}, FULL when motion gating is off. */
+    MotionGate.Change motion = MotionGate.Change.FULL;
+    /** Part of the frame that was fed to the detector when motion is REGION. */
+    Rect region;
+    /** True when the detector ran on the frame or its changed region, not only tracked or reused. */
+    boolean detected;
+    INDArray input;
+    Detections detections;
+
+    FrameTask(long sequence, Frame frame) {
+        this.sequence = sequence;
+        this.frame = frame;
+    }
+
+    int getImageWidth() {
+        return frame.imageWidth;
+    }
+
+    int getImageHeight() {
+        return frame.imageHeight;
+    }
+
+    long getTimestamp() {
+        return frame.timestamp;
+    }
+}
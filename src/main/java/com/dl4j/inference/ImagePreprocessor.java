@@ -0,0 +1,238 @@
+package com.dl4j.inference;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32FC1;
+import static org.bytedeco.javacpp.opencv_core.CV_32FC3;
+import static org.bytedeco.javacpp.opencv_core.split;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imwrite;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGR2RGB;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+
+/**
+ * Turn video frames into network input without allocating anything per frame.
+ *
+ * The preprocessor owns a fixed pool of [1, 3, height, width] input arrays. Each pooled
+ * array has three OpenCV Mat headers pointing straight at its channel planes, so the
+ * resized and scaled frame is split from HWC into CHW directly inside the INDArray buffer.
+ * Replaces NativeImageLoader.asMatrix, which allocates a loader, a Mat and an INDArray per call.
+ *
+ * With letterbox the frame keeps its aspect ratio: it is scaled to fit and centred on a
+ * gray background, and toImageCoordinates() maps the detected boxes back onto the frame.
+ * */
+public class ImagePreprocessor {
+
+    private final int width;
+    private final int height;
+    private final double scale;
+    private final boolean swapRB;
+    private final boolean letterbox;
+    private final Size size;
+
+    private final Mat resized = new Mat();
+    private final Mat scaled = new Mat();
+    private Mat letterboxContent;
+    private Size letterboxContentSize;
+    private int letterboxImageWidth = -1;
+    private int letterboxImageHeight = -1;
+    private final Mat regionResized = new Mat();
+    private final Mat regionScaled = new Mat();
+
+    private final BlockingQueue<INDArray> pool;
+    private final Map<INDArray, MatVector> channels = new IdentityHashMap<>();
+
+    /**
+     * @param width     network input width
+     * @param height    network input height
+     * @param scale     multiplier for the 0-255 pixel values, 1 for the values of
+     *                  NativeImageLoader.asMatrix, 1/255.0 for 0-1 input
+     * @param swapRB    true for RGB planes, false for the BGR order NativeImageLoader produces
+     * @param poolSize  number of input arrays that can be in flight at the same time
+     * */
+    public ImagePreprocessor(
+            int width,
+            int height,
+            double scale,
+            boolean swapRB,
+            int poolSize) {
+        this(width, height, scale, swapRB, false, poolSize);
+    }
+
+    /**
+     * @param letterbox keep the aspect ratio and pad, instead of stretching to width x height
+     * */
+    public ImagePreprocessor(
+            int width,
+            int height,
+            double scale,
+            boolean swapRB,
+            boolean letterbox,
+            int poolSize) {
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.swapRB = swapRB;
+        this.letterbox = letterbox;
+        this.size = new Size(width, height);
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+
+        final int planeSize = width * height;
+        for(int i = 0; i < poolSize; i++) {
+            final INDArray input = Nd4j.create(new int[] {1, 3, height, width}, 'c');
+            final Pointer data = input.data().addressPointer();
+
+            // Mat takes a plain Pointer, whose position counts bytes rather than floats
+            final MatVector planes = new MatVector(3);
+            for(int c = 0; c < 3; c++) {
+                final Pointer plane =
+                        new Pointer(data).position((long) c * planeSize * Float.BYTES);
+                planes.put(c, new Mat(height, width, CV_32FC1, plane));
+            }
+
+            channels.put(input, planes);
+            pool.add(input);
+        }
+    }
+
+    /**
+     * Resize, scale and reorder a BGR frame into a pooled input array.
+     * Blocks while every pooled array is still in use, call release() once done with it.
+     * */
+    public INDArray process(Mat image) throws InterruptedException {
+        final INDArray input = pool.take();
+
+        if(letterbox) {
+            letterbox(image);
+        } else {
+            resize(image, resized, size);
+        }
+        resized.convertTo(scaled, CV_32FC3, scale, 0);
+        if(swapRB) {
+            cvtColor(scaled, scaled, COLOR_BGR2RGB);
+        }
+
+        // The target Mats already have the right size and type, so split writes in place
+        split(scaled, channels.get(input));
+
+        return input;
+    }
+
+    private void letterbox(Mat image) {
+        if(image.cols() != letterboxImageWidth || image.rows() != letterboxImageHeight) {
+            letterboxImageWidth = image.cols();
+            letterboxImageHeight = image.rows();
+
+            final Rect content = letterboxContent(letterboxImageWidth, letterboxImageHeight);
+            resized.create(height, width, image.type());
+            resized.put(new Scalar(128, 128, 128, 0));
+            letterboxContent = new Mat(resized, content);
+            letterboxContentSize = new Size(content.width(), content.height());
+        }
+
+        // Same size and type as the view, so resize writes straight into the padded image
+        resize(image, letterboxContent, letterboxContentSize);
+    }
+
+    /**
+     * @return  where a frame of this size ends up inside the letterboxed input
+     * */
+    private Rect letterboxContent(int imageWidth, int imageHeight) {
+        final double fit = Math.min((double) width / imageWidth, (double) height / imageHeight);
+        final int contentWidth = (int) Math.round(imageWidth * fit);
+        final int contentHeight = (int) Math.round(imageHeight * fit);
+        return new Rect(
+                (width - contentWidth) / 2,
+                (height - contentHeight) / 2,
+                contentWidth,
+                contentHeight);
+    }
+
+    /**
+     * Map boxes from network input coordinates onto a frame of the given size,
+     * undoing the letterbox padding. Does nothing without letterbox.
+     * */
+    public void toImageCoordinates(Detections detections, int imageWidth, int imageHeight) {
+        if(!letterbox) {
+            return;
+        }
+        final Rect content = letterboxContent(imageWidth, imageHeight);
+        detections.transform(
+                (float) content.x() / width,
+                (float) content.y() / height,
+                (float) width / content.width(),
+                (float) height / content.height());
+    }
+
+    /**
+     * Resize, scale and reorder part of a BGR frame into a new input array of any size.
+     * Used for crops whose size changes from frame to frame, so the array is not pooled
+     * and release() ignores it.
+     * */
+    public INDArray processRegion(Mat image, Rect region, int width, int height) {
+        final INDArray input = Nd4j.create(new int[] {1, 3, height, width}, 'c');
+        final Pointer data = input.data().addressPointer();
+
+        final MatVector planes = new MatVector(3);
+        for(int c = 0; c < 3; c++) {
+            final Pointer plane =
+                    new Pointer(data).position((long) c * width * height * Float.BYTES);
+            planes.put(c, new Mat(height, width, CV_32FC1, plane));
+        }
+
+        resize(new Mat(image, region), regionResized, new Size(width, height));
+        regionResized.convertTo(regionScaled, CV_32FC3, scale, 0);
+        if(swapRB) {
+            cvtColor(regionScaled, regionScaled, COLOR_BGR2RGB);
+        }
+        split(regionScaled, planes);
+
+        return input;
+    }
+
+    /**
+     * Give an input array back to the pool.
+     * */
+    public void release(INDArray input) {
+        if(input != null && channels.containsKey(input)) {
+            pool.offer(input);
+        }
+    }
+
+    /**
+     * Write the last resized frame to a jpg file, for debugging only.
+     * */
+    public void saveResizedToJPG(String fileName) {
+        imwrite(fileName, resized);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return  pooled input arrays not in use right now
+     * */
+    public int getAvailableInputs() {
+        return pool.size();
+    }
+
+    public boolean isLetterbox() {
+        return letterbox;
+    }
+}
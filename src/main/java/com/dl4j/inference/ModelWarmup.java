@@ -0,0 +1,96 @@
+package com.dl4j.inference;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time the startup of an inference entry point and take the first inference hit
+ * before real traffic does.
+ *
+ * The first forward pass of a restored model loads native libraries, creates workspaces
+ * and picks kernels for the input shape, and is many times slower than the ones after it.
+ * warmUp() runs that cost on synthetic input, so ready() is only logged once the model
+ * answers at full speed. Restore, warm-up and the first real request are logged so
+ * cold start regressions show up in the logs.
+ * */
+public class ModelWarmup {
+
+    private static Logger log =
+            LoggerFactory.getLogger(ModelWarmup.class);
+
+    /**
+     * A single synthetic inference, e.g. a forward pass on zeros of the production shape.
+     * */
+    @FunctionalInterface
+    public interface Pass {
+        void run() throws Exception;
+    }
+
+    private final String name;
+    private final long createdNanos = System.nanoTime();
+    private volatile boolean firstRequestRecorded;
+
+    public ModelWarmup(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Restore the model and log how long it took.
+     * */
+    public <T> T restore(Callable<T> restore) throws Exception {
+        final long start = System.nanoTime();
+        final T model = restore.call();
+        log.debug(name + " model restored in " + millisSince(start) + " ms");
+        return model;
+    }
+
+    /**
+     * Run the pass a number of times and log the first and the last duration.
+     * */
+    public void warmUp(int iterations, Pass pass) throws Exception {
+        if(iterations <= 0) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        long first = 0;
+        long last = 0;
+        for(int i = 0; i < iterations; i++) {
+            final long passStart = System.nanoTime();
+            pass.run();
+            last = millisSince(passStart);
+            if(i == 0) {
+                first = last;
+            }
+        }
+        log.debug(name + " warm-up of " + iterations + " passes took " + millisSince(start) +
+                " ms, first pass " + first + " ms, last pass " + last + " ms");
+    }
+
+    /**
+     * Log that the entry point is ready to serve, with the time since this warm-up
+     * was created and since the JVM started.
+     * */
+    public void ready() {
+        log.debug(name + " ready after " + millisSince(createdNanos) + " ms" +
+                " (JVM uptime " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms)");
+    }
+
+    /**
+     * Log the latency of the first real request, later calls are ignored.
+     * @param startNanos    System.nanoTime() at which the request arrived
+     * */
+    public void recordFirstRequest(long startNanos) {
+        if(!firstRequestRecorded) {
+            firstRequestRecorded = true;
+            log.debug(name + " first request took " + millisSince(startNanos) + " ms");
+        }
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
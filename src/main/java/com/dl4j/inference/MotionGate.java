@@ -0,0 +1,156 @@
+package com.dl4j.inference;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.Size;
+
+import static org.bytedeco.javacpp.opencv_core.absdiff;
+import static org.bytedeco.javacpp.opencv_core.countNonZero;
+import static org.bytedeco.javacpp.opencv_core.findNonZero;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.javacpp.opencv_imgproc.THRESH_BINARY;
+import static org.bytedeco.javacpp.opencv_imgproc.boundingRect;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+import static org.bytedeco.javacpp.opencv_imgproc.threshold;
+
+/**
+ * Decide from a cheap frame difference whether a frame needs the detector at all.
+ *
+ * Every frame is shrunk to a small grayscale image and compared with the last frame that
+ * went through the detector. When fewer than changeThreshold of the pixels differ by more
+ * than pixelThreshold the frame is reported as unchanged, so its previous detections can be
+ * reused. Comparing against the last detected frame rather than the previous one means slow
+ * changes still add up until they trigger a detection. When the changed pixels fit in a
+ * small enough box, that box is reported so the detector can run on the crop only.
+ *
+ * Not thread safe, evaluate() is meant to be called from a single preprocessing thread.
+ * */
+public class MotionGate {
+
+    public enum Change {
+        /** Below the threshold, reuse the previous detections. */
+        NONE,
+        /** Only getChangedRegion() of the frame needs the detector. */
+        REGION,
+        /** The whole frame needs the detector. */
+        FULL
+    }
+
+    private final Size size;
+    private final int pixelThreshold;
+    private final double changeThreshold;
+    private final double maxRegionFraction;
+
+    private final Mat small = new Mat();
+    private final Mat gray = new Mat();
+    private final Mat reference = new Mat();
+    private final Mat difference = new Mat();
+    private final Mat mask = new Mat();
+    private final Mat points = new Mat();
+    private Rect changedRegion;
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong unchangedFrames = new AtomicLong();
+    private final AtomicLong regionFrames = new AtomicLong();
+
+    /**
+     * @param width             width of the grayscale image that is compared
+     * @param height            height of the grayscale image that is compared
+     * @param pixelThreshold    gray level difference above which a pixel counts as changed
+     * @param changeThreshold   fraction of changed pixels below which a frame is unchanged
+     * @param maxRegionFraction largest fraction of the frame for which REGION is reported, 0 to always use FULL
+     * */
+    public MotionGate(
+            int width,
+            int height,
+            int pixelThreshold,
+            double changeThreshold,
+            double maxRegionFraction) {
+        this.size = new Size(width, height);
+        this.pixelThreshold = pixelThreshold;
+        this.changeThreshold = changeThreshold;
+        this.maxRegionFraction = maxRegionFraction;
+    }
+
+    /**
+     * Compare a BGR frame with the last one that needed the detector.
+     * */
+    public Change evaluate(Mat frame) {
+        frames.incrementAndGet();
+
+        resize(frame, small, size, 0, 0, INTER_AREA);
+        cvtColor(small, gray, COLOR_BGR2GRAY);
+
+        if(reference.empty()) {
+            gray.copyTo(reference);
+            return Change.FULL;
+        }
+
+        absdiff(gray, reference, difference);
+        threshold(difference, mask, pixelThreshold, 255, THRESH_BINARY);
+        final int changed = countNonZero(mask);
+        final int total = size.width() * size.height();
+
+        if(changed < changeThreshold * total) {
+            unchangedFrames.incrementAndGet();
+            return Change.NONE;
+        }
+        gray.copyTo(reference);
+
+        if(maxRegionFraction > 0) {
+            findNonZero(mask, points);
+            final Rect box = boundingRect(points);
+            if(box.area() <= maxRegionFraction * total) {
+                // Scale back from the comparison image to the frame
+                final double scaleX = (double) frame.cols() / size.width();
+                final double scaleY = (double) frame.rows() / size.height();
+                changedRegion = new Rect(
+                        (int) Math.floor(box.x() * scaleX),
+                        (int) Math.floor(box.y() * scaleY),
+                        (int) Math.ceil(box.width() * scaleX),
+                        (int) Math.ceil(box.height() * scaleY));
+                regionFrames.incrementAndGet();
+                return Change.REGION;
+            }
+        }
+        return Change.FULL;
+    }
+
+    /**
+     * @return  the changed part of the frame in frame pixels, after evaluate() returned REGION
+     * */
+    public Rect getChangedRegion() {
+        return changedRegion;
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getUnchangedFrames() {
+        return unchangedFrames.get();
+    }
+
+    public long getRegionFrames() {
+        return regionFrames.get();
+    }
+
+    /**
+     * @return  fraction of evaluated frames that skipped the detector
+     * */
+    public double getSkipRate() {
+        final long evaluated = frames.get();
+        return evaluated == 0 ? 0 : (double) unchangedFrames.get() / evaluated;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + getFrames() +
+                ", unchanged=" + getUnchangedFrames() +
+                ", region=" + getRegionFrames() +
+                ", skipRate=" + String.format("%.2f", getSkipRate());
+    }
+}
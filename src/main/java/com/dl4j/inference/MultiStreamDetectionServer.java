@@ -0,0 +1,387 @@
+package com.dl4j.inference;
+
+import com.dl4j.models.ObjectDetectionGeometry;
+import com.dl4j.prediction.PredictionSink;
+import com.dl4j.prediction.UploadTarget;
+import com.dl4j.server.FramePublisher;
+import com.dl4j.server.MjpegStreamServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run object detection on many video sources in one JVM with one model.
+ *
+ * Every source gets its own grabber thread, which decodes and preprocesses its frames,
+ * its own MJPEG stream on port + index, or on the path /stream-index of port with
+ * streamSinglePort=true, and its own predictions file. The frames of all
+ * sources meet in a {@link FairFrameScheduler}, from which modelPoolSize inference workers
+ * take round-robin batches. Each worker owns a copy of the model, since a ComputationGraph
+ * must not run two forward passes at the same time.
+ *
+ * Usage: MultiStreamDetectionServer modelPath configPath [source ...]
+ * Without sources on the command line the comma separated streamSources property is used.
+ * */
+public class MultiStreamDetectionServer {
+
+    private static Logger log =
+            LoggerFactory.getLogger(MultiStreamDetectionServer.class);
+
+    private final double detectionThreshold = 0.5;
+
+    private final Properties hyperParameters;
+    private final ObjectDetectionGeometry geometry;
+    private final List<ComputationGraph> models = new ArrayList<>();
+    private final HashMap<Integer, String> labels;
+    private final List<StreamSource> sources = new ArrayList<>();
+    private final FairFrameScheduler scheduler;
+    private final int port;
+    private final int streamMaxConnections;
+    private final long streamIdleTimeoutMillis;
+    private final MjpegStreamServer sharedStreamServer;
+    private final int skipFrame;
+    private final FrameDecoder.SkipStrategy frameSkipStrategy;
+    private final int gopSize;
+    private final int inferenceBatchSize;
+    private final long inferenceBatchMaxWaitMillis;
+    private final AtomicLong inferenceErrors = new AtomicLong();
+
+    public MultiStreamDetectionServer(
+            ComputationGraph model,
+            File hyperParametersFile,
+            List<String> videoPaths) throws IOException {
+
+        this.hyperParameters = new Properties();
+        hyperParameters.load(new FileInputStream(hyperParametersFile));
+        this.geometry = ObjectDetectionGeometry.fromProperties(hyperParameters);
+
+        this.port = Integer.parseInt(hyperParameters.getProperty("port"));
+        this.streamMaxConnections = Integer.parseInt(
+                hyperParameters.getProperty("streamMaxConnections", "64"));
+        this.streamIdleTimeoutMillis = Long.parseLong(
+                hyperParameters.getProperty("streamIdleTimeoutMillis", "10000"));
+        this.sharedStreamServer = Boolean.parseBoolean(hyperParameters.getProperty("streamSinglePort", "false")) ?
+                new MjpegStreamServer(port, streamMaxConnections, streamIdleTimeoutMillis) : null;
+        this.skipFrame = Integer.parseInt(hyperParameters.getProperty("skipFrame"));
+        this.frameSkipStrategy = FrameDecoder.SkipStrategy.valueOf(
+                hyperParameters.getProperty("frameSkipStrategy", "DECODE"));
+        this.gopSize = Integer.parseInt(hyperParameters.getProperty("gopSize", "250"));
+        this.inferenceBatchSize = Integer.parseInt(
+                hyperParameters.getProperty("inferenceBatchSize", "1"));
+        this.inferenceBatchMaxWaitMillis = Long.parseLong(
+                hyperParameters.getProperty("inferenceBatchMaxWaitMillis", "0"));
+
+        final int modelPoolSize = Integer.parseInt(
+                hyperParameters.getProperty("modelPoolSize", "1"));
+        models.add(model);
+        for(int i = 1; i < modelPoolSize; i++) {
+            models.add(model.clone());
+        }
+
+        this.scheduler = new FairFrameScheduler(videoPaths.size(), Integer.parseInt(
+                hyperParameters.getProperty("streamQueueCapacity", "1")));
+        this.labels = ObjectDetectionInference.prepareLabels();
+
+        final UploadTarget uploadTarget = ObjectDetectionInference.createUploadTarget(hyperParameters);
+        final String keyPrefix = hyperParameters.getProperty("s3KeyName", "");
+        for(int i = 0; i < videoPaths.size(); i++) {
+            sources.add(new StreamSource(i, videoPaths.get(i), uploadTarget, keyPrefix));
+        }
+    }
+
+    /**
+     * Start every source and inference worker, and wait until all sources ended.
+     * Sources that fail to open or break off are logged and stop on their own.
+     * */
+    public void start() throws InterruptedException, IOException {
+
+        if(sharedStreamServer != null) {
+            sharedStreamServer.start();
+        }
+
+        final List<Thread> threads = new ArrayList<>();
+        for(StreamSource source: sources) {
+            threads.add(new Thread(source, "stream-" + source.index));
+        }
+        for(int i = 0; i < models.size(); i++) {
+            final ComputationGraph model = models.get(i);
+            threads.add(new Thread(() -> inferenceLoop(model), "inference-" + i));
+        }
+
+        for(Thread thread: threads) {
+            thread.start();
+        }
+        for(Thread thread: threads) {
+            thread.join();
+        }
+
+        for(StreamSource source: sources) {
+            log.debug(source.toString());
+            source.close();
+        }
+        if(inferenceErrors.get() > 0) {
+            log.error(inferenceErrors.get() + " inference batches failed");
+        }
+        if(sharedStreamServer != null) {
+            sharedStreamServer.close();
+        }
+    }
+
+    private void inferenceLoop(ComputationGraph model) {
+        final YoloOutputDecoder outputDecoder =
+                YoloOutputDecoder.forModel(model, detectionThreshold);
+        final NonMaxSuppression nonMaxSuppression = new NonMaxSuppression(
+                Double.parseDouble(hyperParameters.getProperty("nmsIouThreshold", "0.5")),
+                Boolean.parseBoolean(hyperParameters.getProperty("nmsPerClass", "false")),
+                Integer.parseInt(hyperParameters.getProperty("nmsTopK", "0")));
+        final Detections[] candidates = new Detections[inferenceBatchSize];
+        for(int i = 0; i < candidates.length; i++) {
+            candidates[i] = new Detections();
+        }
+
+        try {
+            List<FrameTask> tasks;
+            while(!(tasks = scheduler.take(inferenceBatchSize, inferenceBatchMaxWaitMillis))
+                    .isEmpty()) {
+
+                try {
+                    infer(model, outputDecoder, nonMaxSuppression, candidates, tasks);
+                } catch(Exception e) {
+                    // Only this batch is lost, the worker keeps draining the scheduler
+                    // so that the sources are not left blocked in submit
+                    inferenceErrors.incrementAndGet();
+                    log.error("Error running inference on a batch of " + tasks.size() + " frames", e);
+                    for(FrameTask task: tasks) {
+                        final StreamSource source = sources.get(task.source);
+                        if(task.input != null) {
+                            source.imagePreprocessor.release(task.input);
+                            task.input = null;
+                        }
+                        if(task.detections == null) {
+                            source.droppedFrames.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        } catch(InterruptedException ie) {
+            log.debug("inference worker interrupted");
+        }
+    }
+
+    private void infer(
+            ComputationGraph model,
+            YoloOutputDecoder outputDecoder,
+            NonMaxSuppression nonMaxSuppression,
+            Detections[] candidates,
+            List<FrameTask> tasks) throws Exception {
+
+        final INDArray[] inputs = new INDArray[tasks.size()];
+        for(int i = 0; i < inputs.length; i++) {
+            inputs[i] = tasks.get(i).input;
+        }
+
+        final INDArray output = model.outputSingle(
+                inputs.length == 1 ? inputs[0] : Nd4j.concat(0, inputs));
+        outputDecoder.decode(output, candidates);
+
+        for(int i = 0; i < inputs.length; i++) {
+            final FrameTask task = tasks.get(i);
+            final StreamSource source = sources.get(task.source);
+            source.imagePreprocessor.release(task.input);
+            task.input = null;
+
+            task.detections = nonMaxSuppression.apply(candidates[i], new Detections());
+            source.imagePreprocessor.toImageCoordinates(
+                    task.detections, task.getImageWidth(), task.getImageHeight());
+            source.publish(task);
+        }
+    }
+
+    /**
+     * One video source with its grabber thread, stream server and predictions file.
+     * */
+    private class StreamSource implements Runnable {
+
+        private final int index;
+        private final String videoPath;
+        private final boolean live;
+        private final ImagePreprocessor imagePreprocessor;
+        private final FramePublisher publisher = new FramePublisher("stream");
+        // null when the source is served by the shared stream server
+        private final MjpegStreamServer streamServer;
+        private final PredictionSink predictionSink;
+
+        private final AtomicLong processedFrames = new AtomicLong();
+        private final AtomicLong droppedFrames = new AtomicLong();
+        private long lastPublished = -1;
+
+        StreamSource(int index, String videoPath, UploadTarget uploadTarget, String keyPrefix)
+                throws IOException {
+            this.index = index;
+            this.videoPath = videoPath;
+            this.live = !new File(videoPath).isFile();
+
+            // One frame queued, one per inference worker and one being prepared
+            this.imagePreprocessor = new ImagePreprocessor(
+                    geometry.getInputWidth(),
+                    geometry.getInputHeight(),
+                    Double.parseDouble(hyperParameters.getProperty("inputScale", "1")),
+                    Boolean.parseBoolean(hyperParameters.getProperty("swapRB", "false")),
+                    Boolean.parseBoolean(hyperParameters.getProperty("letterbox", "false")),
+                    Integer.parseInt(hyperParameters.getProperty("streamQueueCapacity", "1")) +
+                            models.size() * inferenceBatchSize + 1);
+
+            this.publisher.setJpegQuality(
+                    Integer.parseInt(hyperParameters.getProperty("streamJpegQuality", "75")));
+            if(sharedStreamServer != null) {
+                sharedStreamServer.register(getStreamPath(), publisher);
+                this.streamServer = null;
+            } else {
+                this.streamServer = new MjpegStreamServer(
+                        port + index, publisher, streamMaxConnections, streamIdleTimeoutMillis);
+            }
+            this.predictionSink = new PredictionSink(
+                    new File(System.getProperty("user.dir")),
+                    "predictions-" + index + "-" + Instant.now().toEpochMilli(),
+                    keyPrefix + "stream-" + index + "/",
+                    uploadTarget,
+                    Long.parseLong(hyperParameters.getProperty("predictionRollBytes", "1048576")),
+                    Long.parseLong(hyperParameters.getProperty("predictionRollMillis", "60000")),
+                    Long.parseLong(hyperParameters.getProperty("predictionUploadMillis", "5000")));
+        }
+
+        public void run() {
+            FrameGrabber frameGrabber = null;
+            try {
+                frameGrabber = ObjectDetectionInference.createFrameGrabber(videoPath);
+                frameGrabber.start();
+                if(streamServer != null) {
+                    log.debug("Streaming " + videoPath + " on port " + (port + index));
+                    streamServer.start();
+                } else {
+                    log.debug("Streaming " + videoPath + " on port " + port + getStreamPath());
+                }
+
+                final FrameDecoder frameDecoder =
+                        new FrameDecoder(frameGrabber, skipFrame, frameSkipStrategy, gopSize);
+
+                FrameTask task;
+                while((task = frameDecoder.next()) != null) {
+                    task.source = index;
+                    task.mat = new OpenCVFrameConverter.ToMat().convert(task.frame);
+                    task.input = imagePreprocessor.process(task.mat);
+
+                    final FrameTask dropped = scheduler.submit(task, live);
+                    if(dropped != null) {
+                        imagePreprocessor.release(dropped.input);
+                        droppedFrames.incrementAndGet();
+                    }
+                }
+            } catch(InterruptedException ie) {
+                log.debug("stream " + index + " interrupted");
+            } catch(Exception e) {
+                log.error("Error reading stream " + videoPath, e);
+            } finally {
+                scheduler.finish(index);
+                if(frameGrabber != null) {
+                    try {
+                        frameGrabber.stop();
+                    } catch(FrameGrabber.Exception e) {
+                        log.error("Error stopping grabber of " + videoPath, e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Draw, stream and record a frame. With several inference workers a later frame of
+         * the same source can finish first, the older one is then dropped.
+         * */
+        synchronized void publish(FrameTask task) {
+            if(task.sequence <= lastPublished) {
+                droppedFrames.incrementAndGet();
+                return;
+            }
+            lastPublished = task.sequence;
+
+            final Mat mat = task.mat;
+            for(int i = 0; i < task.detections.size(); i++) {
+                ObjectDetectionInference.drawBoundingBox(
+                        mat, task.getImageWidth(), task.getImageHeight(),
+                        task.detections, i, labels);
+                appendPrediction(
+                        labels.get(task.detections.getPredictedClass(i)) +
+                                ";" + Math.round(task.detections.getConfidence(i) * 100) +
+                                ";" + task.getTimestamp());
+            }
+
+            publisher.publish(mat);
+            processedFrames.incrementAndGet();
+        }
+
+        private void appendPrediction(String content) {
+            try {
+                predictionSink.append(content);
+            } catch(IOException ioe) {
+                log.error("Error saving prediction of " + videoPath, ioe);
+            }
+        }
+
+        String getStreamPath() {
+            return "/stream-" + index;
+        }
+
+        void close() throws IOException {
+            publisher.close();
+            if(streamServer != null) {
+                streamServer.close();
+            } else {
+                sharedStreamServer.unregister(getStreamPath());
+            }
+            predictionSink.close();
+        }
+
+        @Override
+        public String toString() {
+            return videoPath + ": processed=" + processedFrames.get() +
+                    ", dropped=" + droppedFrames.get();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final File hyperParameters = new File(args[1]);
+
+        List<String> videoPaths = Arrays.asList(args).subList(2, args.length);
+        if(videoPaths.isEmpty()) {
+            final Properties properties = new Properties();
+            properties.load(new FileInputStream(hyperParameters));
+            videoPaths = new ArrayList<>();
+            for(String source: properties.getProperty("streamSources", "").split(",")) {
+                if(!source.trim().isEmpty()) {
+                    videoPaths.add(source.trim());
+                }
+            }
+        }
+
+        new MultiStreamDetectionServer(
+                ModelSerializer.restoreComputationGraph(args[0]), hyperParameters, videoPaths)
+                .start();
+    }
+}
@@ -0,0 +1,114 @@
+package com.dl4j.inference;
+
+import java.util.Arrays;
+
+/**
+ * Greedy non-max suppression over {@link Detections}.
+ *
+ * Boxes are sorted by confidence once, with a primitive sort on packed (confidence, index)
+ * keys, and copied into flat coordinate arrays in that order. Each kept box then drops the
+ * remaining boxes that overlap it by more than iouThreshold, optionally only within the
+ * same class, and the survivors are compacted so later passes scan fewer boxes.
+ * Scratch arrays are reused between calls, so an instance must only be used by one thread.
+ * */
+public class NonMaxSuppression {
+
+    private final double iouThreshold;
+    private final boolean perClass;
+    private final int topK;
+
+    private long[] keys = new long[0];
+    private int[] order = new int[0];
+    private float[] x1 = new float[0];
+    private float[] y1 = new float[0];
+    private float[] x2 = new float[0];
+    private float[] y2 = new float[0];
+    private float[] areas = new float[0];
+    private int[] classes = new int[0];
+    private int[] remaining = new int[0];
+
+    /**
+     * @param iouThreshold  boxes overlapping a kept box by more than this are dropped
+     * @param perClass      only suppress boxes of the same predicted class
+     * @param topK          keep at most this many boxes, 0 for no limit
+     * */
+    public NonMaxSuppression(double iouThreshold, boolean perClass, int topK) {
+        this.iouThreshold = iouThreshold;
+        this.perClass = perClass;
+        this.topK = topK > 0 ? topK : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param detections    candidate boxes, left unchanged
+     * @param kept          receives the surviving boxes, highest confidence first
+     * @return  kept
+     * */
+    public Detections apply(Detections detections, Detections kept) {
+        kept.clear();
+        final int n = detections.size();
+        if(n == 0) {
+            return kept;
+        }
+        ensureCapacity(n);
+
+        for(int i = 0; i < n; i++) {
+            // Confidences are never negative, so their float bits sort like the values
+            keys[i] = ((long) Float.floatToIntBits(detections.getConfidence(i)) << 32) | i;
+        }
+        Arrays.sort(keys, 0, n);
+
+        // Lay the boxes out in descending confidence order, so the scans below are sequential
+        for(int k = 0; k < n; k++) {
+            final int i = (int) keys[n - 1 - k];
+            order[k] = i;
+            x1[k] = detections.getX1(i);
+            y1[k] = detections.getY1(i);
+            x2[k] = detections.getX2(i);
+            y2[k] = detections.getY2(i);
+            areas[k] = (x2[k] - x1[k]) * (y2[k] - y1[k]);
+            classes[k] = detections.getPredictedClass(i);
+            remaining[k] = k;
+        }
+
+        int count = n;
+        while(count > 0 && kept.size() < topK) {
+            final int best = remaining[0];
+            kept.add(detections, order[best]);
+
+            // Keep only the boxes that survive the new best box, preserving their order
+            int survivors = 0;
+            for(int r = 1; r < count; r++) {
+                final int k = remaining[r];
+                if((perClass && classes[k] != classes[best]) || iou(best, k) <= iouThreshold) {
+                    remaining[survivors++] = k;
+                }
+            }
+            count = survivors;
+        }
+        return kept;
+    }
+
+    private float iou(int a, int b) {
+        final float width = Math.min(x2[a], x2[b]) - Math.max(x1[a], x1[b]);
+        final float height = Math.min(y2[a], y2[b]) - Math.max(y1[a], y1[b]);
+        if(width <= 0 || height <= 0) {
+            return 0;
+        }
+        final float intersection = width * height;
+        return intersection / (areas[a] + areas[b] - intersection);
+    }
+
+    private void ensureCapacity(int n) {
+        if(keys.length < n) {
+            keys = new long[n];
+            order = new int[n];
+            x1 = new float[n];
+            y1 = new float[n];
+            x2 = new float[n];
+            y2 = new float[n];
+            areas = new float[n];
+            classes = new int[n];
+            remaining = new int[n];
+        }
+    }
+}
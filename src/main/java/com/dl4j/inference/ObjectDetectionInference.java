@@ -5,39 +5,42 @@ import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.dl4j.metrics.LatencyHistogram;
+import com.dl4j.metrics.MetricsHttpServer;
+import com.dl4j.metrics.MetricsRegistry;
+import com.dl4j.models.ObjectDetectionGeometry;
+import com.dl4j.prediction.LocalDirectoryUploadTarget;
+import com.dl4j.prediction.PredictionSink;
+import com.dl4j.prediction.S3UploadTarget;
+import com.dl4j.prediction.UploadTarget;
 import com.dl4j.server.HttpStreamServer;
 import com.dl4j.utils.JavaCVHelper;
 
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 import org.bytedeco.javacpp.opencv_core.Point;
+import org.bytedeco.javacpp.opencv_core.Rect;
 import org.bytedeco.javacpp.opencv_core.Scalar;
 import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.FrameGrabber;
 import org.bytedeco.javacv.IPCameraFrameGrabber;
 import org.bytedeco.javacv.OpenCVFrameConverter;
-import org.datavec.image.loader.NativeImageLoader;
-import org.deeplearning4j.nn.layers.objdetect.DetectedObject;
-import org.deeplearning4j.nn.layers.objdetect.Yolo2OutputLayer;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
-import java.io.PrintWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Properties;
 import java.util.List;
-import java.util.Optional;
 
 import static org.bytedeco.javacpp.opencv_core.FONT_HERSHEY_DUPLEX;
 import static org.bytedeco.javacpp.opencv_imgproc.putText;
@@ -52,18 +55,46 @@ public class ObjectDetectionInference {
     private static Logger log =
             LoggerFactory.getLogger(ObjectDetectionInference.class);
 
-    private static HttpStreamServer httpStreamService;
+    private HttpStreamServer httpStreamService;
+
+    private final int scaledToWidth;
+    private final int scaledToHeight;
+    private final double detectionThreshold = 0.5;
 
-    private volatile Mat[] v = new Mat[1];
-    private ArrayList<DetectedObject> predictedObjects;
     private ComputationGraph model;
     private HashMap<Integer, String> labels;
     private int port;
+    private int streamMaxConnections;
+    private long streamIdleTimeoutMillis;
+    private int streamJpegQuality;
     private int skipFrame;
-    private String s3BucketName;
-    private String s3KeyName;
-    private AmazonS3 s3Client;
-    private String predictionFileName;
+    private FrameDecoder.SkipStrategy frameSkipStrategy;
+    private int gopSize;
+    private boolean adaptiveSkip;
+    private long targetLatencyMillis;
+    private double targetFps;
+    private int maxSkipFrame;
+    private volatile AdaptiveFrameSkipController skipController;
+    private ImagePreprocessor imagePreprocessor;
+    private YoloOutputDecoder outputDecoder;
+    private NonMaxSuppression nonMaxSuppression;
+    private ObjectTracker tracker;
+    private MotionGate motionGate;
+    private Detections lastDetections = new Detections();
+    private Detections[] candidates = new Detections[0];
+    private boolean debugImageDump;
+    private int pipelineQueueCapacity;
+    private int inferenceBatchSize;
+    private long inferenceBatchMaxWaitMillis;
+    private PredictionSink predictionSink;
+    private int warmupIterations;
+    private ModelWarmup warmup;
+    private int metricsPort;
+    private boolean jmxEnabled;
+    private final MetricsRegistry metrics = new MetricsRegistry("object_detection");
+    private final LatencyHistogram forwardLatency = metrics.histogram("inference_forward");
+    private final LatencyHistogram nmsLatency = metrics.histogram("nms");
+    private final LatencyHistogram endToEndLatency = metrics.histogram("end_to_end");
 
     public ObjectDetectionInference(ComputationGraph model, File hyperParametersFile)
             throws IOException {
@@ -71,36 +102,123 @@ public class ObjectDetectionInference {
         final Properties hyperParameters = new Properties();
         hyperParameters.load(new FileInputStream(hyperParametersFile));
 
-        this.predictionFileName = "predictions-" + Instant.now().toEpochMilli() + ".csv";
+        final ObjectDetectionGeometry geometry = ObjectDetectionGeometry.fromProperties(hyperParameters);
+        this.scaledToWidth = geometry.getInputWidth();
+        this.scaledToHeight = geometry.getInputHeight();
 
         this.model = model;
         this.port = Integer.parseInt(hyperParameters.getProperty("port"));
+        this.streamMaxConnections = Integer.parseInt(
+                hyperParameters.getProperty("streamMaxConnections", "64"));
+        this.streamIdleTimeoutMillis = Long.parseLong(
+                hyperParameters.getProperty("streamIdleTimeoutMillis", "10000"));
+        this.streamJpegQuality = Integer.parseInt(
+                hyperParameters.getProperty("streamJpegQuality", "75"));
         this.skipFrame = Integer.parseInt(hyperParameters.getProperty("skipFrame"));
-        this.s3BucketName = hyperParameters.getProperty("s3BucketName");
-        this.s3KeyName = hyperParameters.getProperty("s3KeyName");
+        this.frameSkipStrategy = FrameDecoder.SkipStrategy.valueOf(
+                hyperParameters.getProperty("frameSkipStrategy", "DECODE"));
+        this.gopSize = Integer.parseInt(hyperParameters.getProperty("gopSize", "250"));
+        this.adaptiveSkip = Boolean.parseBoolean(
+                hyperParameters.getProperty("adaptiveSkip", "false"));
+        this.targetLatencyMillis = Long.parseLong(
+                hyperParameters.getProperty("targetLatencyMillis", "500"));
+        this.targetFps = Double.parseDouble(hyperParameters.getProperty("targetFps", "0"));
+        this.maxSkipFrame = Integer.parseInt(hyperParameters.getProperty("maxSkipFrame", "60"));
+        this.pipelineQueueCapacity = Integer.parseInt(
+                hyperParameters.getProperty("pipelineQueueCapacity", "4"));
+        this.inferenceBatchSize = Integer.parseInt(
+                hyperParameters.getProperty("inferenceBatchSize", "1"));
+        this.inferenceBatchMaxWaitMillis = Long.parseLong(
+                hyperParameters.getProperty("inferenceBatchMaxWaitMillis", "0"));
+        this.warmupIterations = Integer.parseInt(
+                hyperParameters.getProperty("warmupIterations", "3"));
+        this.debugImageDump = Boolean.parseBoolean(
+                hyperParameters.getProperty("debugImageDump", "false"));
+        this.metricsPort = Integer.parseInt(hyperParameters.getProperty("metricsPort", "0"));
+        this.jmxEnabled = Boolean.parseBoolean(hyperParameters.getProperty("jmxEnabled", "false"));
+
+        // Pixels stay 0-255 and BGR by default, as NativeImageLoader.asMatrix gives them.
+        // inputScale=0.00392156862745098 (1/255) scales them to 0-1 for models trained
+        // behind an ImagePreProcessingScaler(0, 1)
+        this.imagePreprocessor = new ImagePreprocessor(
+                scaledToWidth,
+                scaledToHeight,
+                Double.parseDouble(hyperParameters.getProperty("inputScale", "1")),
+                Boolean.parseBoolean(hyperParameters.getProperty("swapRB", "false")),
+                Boolean.parseBoolean(hyperParameters.getProperty("letterbox", "false")),
+                pipelineQueueCapacity + inferenceBatchSize + 1);
+
+        this.outputDecoder = YoloOutputDecoder.forModel(model, detectionThreshold);
+        this.nonMaxSuppression = new NonMaxSuppression(
+                Double.parseDouble(hyperParameters.getProperty("nmsIouThreshold", "0.5")),
+                Boolean.parseBoolean(hyperParameters.getProperty("nmsPerClass", "false")),
+                Integer.parseInt(hyperParameters.getProperty("nmsTopK", "0")));
+
+        if(Boolean.parseBoolean(hyperParameters.getProperty("trackerEnabled", "false"))) {
+            this.tracker = new ObjectTracker(
+                    Integer.parseInt(hyperParameters.getProperty("detectionInterval", "5")),
+                    Double.parseDouble(hyperParameters.getProperty("trackMatchIou", "0.3")),
+                    Double.parseDouble(hyperParameters.getProperty("trackConfidenceDecay", "0.9")),
+                    Double.parseDouble(hyperParameters.getProperty("trackMinConfidence", "0.3")));
+        }
 
-        this.s3Client = AmazonS3ClientBuilder.standard()
+        if(Boolean.parseBoolean(hyperParameters.getProperty("motionGateEnabled", "false"))) {
+            this.motionGate = new MotionGate(
+                    Integer.parseInt(hyperParameters.getProperty("motionGateWidth", "160")),
+                    Integer.parseInt(hyperParameters.getProperty("motionGateHeight", "90")),
+                    Integer.parseInt(hyperParameters.getProperty("motionPixelThreshold", "25")),
+                    Double.parseDouble(hyperParameters.getProperty("motionChangeThreshold", "0.002")),
+                    Double.parseDouble(hyperParameters.getProperty("motionMaxRegionFraction", "0")));
+        }
+
+        this.predictionSink = new PredictionSink(
+                new File(System.getProperty("user.dir")),
+                "predictions-" + Instant.now().toEpochMilli(),
+                hyperParameters.getProperty("s3KeyName", ""),
+                createUploadTarget(hyperParameters),
+                Long.parseLong(hyperParameters.getProperty("predictionRollBytes", "1048576")),
+                Long.parseLong(hyperParameters.getProperty("predictionRollMillis", "60000")),
+                Long.parseLong(hyperParameters.getProperty("predictionUploadMillis", "5000")));
+        this.predictionSink.setUploadLatency(metrics.histogram("prediction_upload"));
+
+        labels = prepareLabels();
+    }
+
+    /**
+     * Create the target rolled prediction files are uploaded to, S3 unless
+     * predictionUploadTarget=local.
+     * */
+    static UploadTarget createUploadTarget(Properties hyperParameters) throws IOException {
+        if("local".equals(hyperParameters.getProperty("predictionUploadTarget", "s3"))) {
+            return new LocalDirectoryUploadTarget(
+                    new File(hyperParameters.getProperty("predictionUploadDir", "uploads")));
+        }
+
+        final AmazonS3 s3Client = AmazonS3ClientBuilder.standard()
                 .withCredentials(new AWSStaticCredentialsProvider(
                         new ProfileCredentialsProvider().getCredentials()))
                 .withRegion(Regions.DEFAULT_REGION)
                 .build();
-
-        prepareLabels();
-        prepareS3Bucket();
+        return new S3UploadTarget(s3Client, hyperParameters.getProperty("s3BucketName"));
     }
 
-    public void startRealTimeVideoDetection(String videoPath)
-            throws Exception {
-
-        FrameGrabber frameGrabber;
-
+    /**
+     * Create an unstarted grabber, IPCameraFrameGrabber for http URLs and FFmpeg for anything else.
+     * */
+    static FrameGrabber createFrameGrabber(String videoPath) throws IOException {
         if(videoPath.startsWith("http")) {
-            frameGrabber = new IPCameraFrameGrabber(videoPath, 60, 60, TimeUnit.SECONDS);
+            final FrameGrabber frameGrabber =
+                    new IPCameraFrameGrabber(videoPath, 60, 60, TimeUnit.SECONDS);
             frameGrabber.setFormat("mp4");
-        } else {
-            frameGrabber = new FFmpegFrameGrabber(videoPath);
+            return frameGrabber;
         }
+        return new FFmpegFrameGrabber(videoPath);
+    }
 
+    public void startRealTimeVideoDetection(String videoPath)
+            throws Exception {
+
+        final FrameGrabber frameGrabber = createFrameGrabber(videoPath);
         frameGrabber.start();
 
         final double totalFrames = frameGrabber.getLengthInFrames();
@@ -109,252 +227,443 @@ public class ObjectDetectionInference {
         log.debug("The input video clip has " + totalFrames + " frames");
         log.debug("The input video clip has frame rate of " + frameRate);
 
-        Frame frame;
-
+        MetricsHttpServer metricsServer = null;
         try {
 
-            httpStreamService = new HttpStreamServer(port, v[0]);
+            httpStreamService = new HttpStreamServer(
+                    port, null, streamMaxConnections, streamIdleTimeoutMillis);
+            httpStreamService.setJpegQuality(streamJpegQuality);
             new Thread(httpStreamService).start();
 
-            for(int i = 1; i < totalFrames; i+=skipFrame) {
+            final FrameDecoder frameDecoder =
+                    new FrameDecoder(frameGrabber, skipFrame, frameSkipStrategy, gopSize);
 
-                frameGrabber.setFrameNumber(i);
-                frame = frameGrabber.grab();
+            if(adaptiveSkip) {
+                skipController = new AdaptiveFrameSkipController(
+                        frameRate, targetLatencyMillis, targetFps, skipFrame, 1, maxSkipFrame);
+                frameDecoder.setSkipController(skipController);
+            }
+
+            registerGauges(frameDecoder);
+            if(metricsPort > 0) {
+                metricsServer = new MetricsHttpServer(metricsPort, metrics);
+            }
+            if(jmxEnabled) {
+                metrics.registerMBean("com.dl4j:type=ObjectDetectionInference");
+            }
+
+            new DetectionPipeline(frameDecoder, pipelineQueueCapacity)
+                    .metrics(metrics)
+                    .stage("preprocess", this::preprocess)
+                    .batchStage("inference", inferenceBatchSize, inferenceBatchMaxWaitMillis,
+                            this::detect)
+                    .stage("publish", this::publish)
+                    .run();
+        } catch(IOException ioe) {
+            log.error("Error saving to image file", ioe);
+            ioe.printStackTrace();
+        } finally {
+            // Also when the pipeline failed, so buffered predictions are still uploaded
+            if(httpStreamService != null) {
+                try {
+                    httpStreamService.close();
+                } catch(IOException ioe) {
+                    log.error("Error closing stream server", ioe);
+                }
+            }
+            try {
+                predictionSink.close();
+            } catch(IOException ioe) {
+                log.error("Error closing prediction sink", ioe);
+            }
+            if(metricsServer != null) {
+                metricsServer.close();
+            }
+            try {
+                metrics.unregisterMBean();
+            } catch(JMException e) {
+                log.error("Error unregistering metrics bean", e);
+            }
+            frameGrabber.stop();
+        }
+    }
+
+    private void registerGauges(FrameDecoder frameDecoder) {
+        metrics.gauge("frames_skipped", frameDecoder::getSkippedFrames);
+        metrics.gauge("input_pool_available", imagePreprocessor::getAvailableInputs);
+        metrics.gauge("prediction_uploads", predictionSink::getUploadedFiles);
+        metrics.gauge("prediction_uploads_failed", predictionSink::getFailedUploads);
+        metrics.gauge("prediction_uploads_pending", predictionSink::getPendingUploads);
+        if(skipController != null) {
+            metrics.gauge("skip_interval", skipController::getCurrentSkip);
+            metrics.gauge("skip_lag_millis", skipController::getLagMillis);
+            metrics.gauge("skip_dropped_frames", skipController::getDroppedFrames);
+        }
+        if(motionGate != null) {
+            metrics.gauge("motion_gate_skip_rate", motionGate::getSkipRate);
+        }
+        if(tracker != null) {
+            metrics.gauge("tracked_objects", tracker::getTrackCount);
+        }
+    }
 
-                // saveFrameAsDataset(frame, 832, 416, "data/Images-new/frame-" + i + ".jpg"); // for dataset preparation
+    /**
+     * @return  the counters, gauges and latency histograms of this detection
+     * */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
 
-                JavaCVHelper.saveFrameToJPG(frame, "frame.jpg"); // for prediction usage
+    private void preprocess(FrameTask task) throws InterruptedException {
 
-                v[0] = new OpenCVFrameConverter.ToMat().convert(frame);
+        // saveFrameAsDataset(frame, 832, 416, "data/Images-new/frame-" + i + ".jpg"); // for dataset preparation
 
-                if(v[0] == null) {
-                    log.debug("frame is null");
-                    return;
-                }
+        if(debugImageDump) {
+            JavaCVHelper.saveFrameToJPG(task.frame, "frame.jpg");
+        }
 
-                 markObjectWithBoundingBox(
-                         model,
-                         v[0],
-                         frame.imageWidth,
-                         frame.imageHeight,
-                         frame.timestamp,
-                        true);
+        task.mat = new OpenCVFrameConverter.ToMat().convert(task.frame);
 
-                JavaCVHelper.saveMatToJPG(v[0], frame.imageWidth, frame.imageHeight,
-                        "frame-prediction.jpg");
+        // Frames in between detection passes only need their tracked boxes drawn
+        task.inferenceRequired = tracker == null || tracker.shouldDetect();
+        if(!task.inferenceRequired) {
+            return;
+        }
 
-                // Push to stream
-                httpStreamService.frame= v[0];
+        if(motionGate != null) {
+            task.motion = motionGate.evaluate(task.mat);
+            if(task.motion == MotionGate.Change.NONE) {
+                return;
             }
+            if(task.motion == MotionGate.Change.REGION) {
+                preprocessRegion(task, motionGate.getChangedRegion());
+                return;
+            }
+        }
 
-            httpStreamService.close();
-        } catch(IOException ioe) {
-            log.error("Error saving to image file", ioe);
-            ioe.printStackTrace();
+        task.input = imagePreprocessor.process(task.mat);
+
+        if(debugImageDump) {
+            imagePreprocessor.saveResizedToJPG("downsize.jpg");
         }
     }
 
-    private void prepareLabels() {
-        final String sponsors = "<USE YOUR OWN LABELS>";
-        final String[] sponsorsList = sponsors.split(",");
-
-        int i=0;
-        labels = new HashMap<>();
-        for(String sponsor: sponsorsList) {
-            labels.put(i++, sponsor);
+    /**
+     * Run the model, decoder and suppression on blank input at the batch sizes the pipeline
+     * uses, full batches and single frames after a batch timeout, before any real frame.
+     * */
+    public void warmUp(ModelWarmup warmup) throws Exception {
+        this.warmup = warmup;
+        for(int batchSize: new int[] {inferenceBatchSize, 1}) {
+            final INDArray input = Nd4j.zeros(batchSize, 3, scaledToHeight, scaledToWidth);
+            warmup.warmUp(warmupIterations, () -> {
+                outputDecoder.decode(model.outputSingle(input), candidates(batchSize));
+                nonMaxSuppression.apply(candidates[0], new Detections());
+            });
+            if(inferenceBatchSize == 1) {
+                break;
+            }
         }
-        log.debug(labels.toString());
+        warmup.ready();
     }
 
-    private void prepareS3Bucket() {
-        if(!s3Client.doesBucketExistV2(s3BucketName)) {
-            s3Client.createBucket(s3BucketName);
+    private Detections[] candidates(int batchSize) {
+        if(candidates.length < batchSize) {
+            candidates = new Detections[batchSize];
+            for(int i = 0; i < candidates.length; i++) {
+                candidates[i] = new Detections();
+            }
         }
+        return candidates;
     }
 
-    private void appendPrediction(String content) {
-        PrintWriter out = null;
-        try {
-            out = new PrintWriter(
-                    new BufferedWriter(new FileWriter(
-                            this.predictionFileName, true)));
-            out.println(content);
-            out.flush();
-        } catch(IOException ioe) {
-            log.error("Error saving prediction", ioe);
-        } finally {
-            out.close();
+    /**
+     * Crop the changed region at the same scale as a full frame, rounded up to whole grid
+     * cells, so the detector sees the objects at the size it was trained on and does less
+     * work than for the full input.
+     * */
+    private void preprocessRegion(FrameTask task, Rect changed) {
+        final int imageWidth = task.getImageWidth();
+        final int imageHeight = task.getImageHeight();
+        double scaleX = (double) scaledToWidth / imageWidth;
+        double scaleY = (double) scaledToHeight / imageHeight;
+        if(imagePreprocessor.isLetterbox()) {
+            scaleX = scaleY = Math.min(scaleX, scaleY);
         }
+        final int cellSize = ObjectDetectionGeometry.CELL_SIZE;
+
+        final int inputWidth = Math.min(scaledToWidth,
+                (int) Math.ceil(changed.width() * scaleX / cellSize) * cellSize);
+        final int inputHeight = Math.min(scaledToHeight,
+                (int) Math.ceil(changed.height() * scaleY / cellSize) * cellSize);
+
+        // Grow the crop around the centre of the change to match the rounded input size
+        final int regionWidth = Math.min(imageWidth, (int) Math.round(inputWidth / scaleX));
+        final int regionHeight = Math.min(imageHeight, (int) Math.round(inputHeight / scaleY));
+        final int x = Math.max(0, Math.min(imageWidth - regionWidth,
+                changed.x() + changed.width() / 2 - regionWidth / 2));
+        final int y = Math.max(0, Math.min(imageHeight - regionHeight,
+                changed.y() + changed.height() / 2 - regionHeight / 2));
+
+        task.region = new Rect(x, y, regionWidth, regionHeight);
+        task.input = imagePreprocessor.processRegion(
+                task.mat, task.region, inputWidth, inputHeight);
     }
 
-    private INDArray prepareImageToArray(
-            Mat matFile,
-            int width,
-            int height) throws IOException {
+    private void detect(List<FrameTask> tasks) {
 
-        final NativeImageLoader nativeImageLoader =
-                new NativeImageLoader(height, width, 3);
-        final INDArray indArray = nativeImageLoader.asMatrix(matFile);
-        JavaCVHelper.saveIndArrayToJPG(indArray, "downsize.jpg");
+        int inferenceCount = 0;
+        final INDArray[] inputs = new INDArray[tasks.size()];
+        for(FrameTask task: tasks) {
+            if(task.inferenceRequired && task.motion == MotionGate.Change.FULL) {
+                inputs[inferenceCount++] = task.input;
+            }
+        }
 
-        return indArray;
-    }
+        if(inferenceCount > 0) {
+            // One forward pass for the whole batch, along the minibatch dimension
+            final long start = System.nanoTime();
+            final INDArray imageOutput = model.outputSingle(inferenceCount == 1 ?
+                    inputs[0] : Nd4j.concat(0, Arrays.copyOf(inputs, inferenceCount)));
 
-    private void markObjectWithBoundingBox(
-            ComputationGraph model,
-            Mat matFile,
-            int imageWidth,
-            int imageHeight,
-            long imageTimestamp,
-            boolean newBoundingBox) throws Exception {
+            outputDecoder.decode(imageOutput, candidates(inferenceCount));
+            forwardLatency.recordSince(start);
+            if(warmup != null) {
+                warmup.recordFirstRequest(tasks.get(0).decodedNanos);
+            }
+        }
 
-        // this set of dimension is use for 1920x1048 only
-        final int scaledToWidth = 832;
-        final int scaledToHeight = 416;
-        final int gridWidth = 26;
-        final int gridHeight = 13;
-        final double detectionThreshold = 0.5;
+        // Tracker updates and predictions must follow frame order
+        int i = 0;
+        for(FrameTask task: tasks) {
+            if(!task.inferenceRequired) {
+                task.detections = tracker.predict(new Detections());
+                metrics.counter("frames_tracked").increment();
+                continue;
+            }
 
-        final Yolo2OutputLayer outputLayer =
-                (Yolo2OutputLayer) model.getOutputLayer(0);
+            if(task.motion == MotionGate.Change.NONE) {
+                task.detections = copy(lastDetections);
+                metrics.counter("frames_reused").increment();
+            } else if(task.motion == MotionGate.Change.REGION) {
+                task.detections = detectRegion(task);
+                metrics.counter("frames_region").increment();
+                task.detected = true;
+            } else {
+                imagePreprocessor.release(task.input);
+                task.input = null;
+                final long start = System.nanoTime();
+                task.detections = nonMaxSuppression.apply(candidates[i++], new Detections());
+                nmsLatency.recordSince(start);
+                metrics.counter("frames_detected").increment();
+                task.detected = true;
+                imagePreprocessor.toImageCoordinates(
+                        task.detections, task.getImageWidth(), task.getImageHeight());
+            }
+            lastDetections = task.detections;
+            log.debug("Total predicted objects: " + task.detections.toString());
 
-        if(newBoundingBox) {
-            final INDArray imageOutput = model.outputSingle(
-                    prepareImageToArray(matFile, scaledToWidth, scaledToHeight));
+            if(tracker != null) {
+                task.detections = tracker.update(task.detections, new Detections());
+            }
+        }
+    }
 
-            predictedObjects = (ArrayList<DetectedObject>)
-                    outputLayer.getPredictedObjects(imageOutput, detectionThreshold);
-            log.debug("Total predicted objects: " + predictedObjects.toString());
+    /**
+     * Detect inside the crop and merge with the previous detections outside of it.
+     * */
+    private Detections detectRegion(FrameTask task) {
+        final Detections[] regionCandidates = {new Detections()};
+        outputDecoder.decode(model.outputSingle(task.input), regionCandidates);
+        task.input = null;
+
+        final double imageWidth = task.getImageWidth();
+        final double imageHeight = task.getImageHeight();
+        final double left = task.region.x() / imageWidth;
+        final double top = task.region.y() / imageHeight;
+        final double width = task.region.width() / imageWidth;
+        final double height = task.region.height() / imageHeight;
+
+        final Detections merged = new Detections();
+        for(int j = 0; j < lastDetections.size(); j++) {
+            final double centerX = (lastDetections.getX1(j) + lastDetections.getX2(j)) / 2;
+            final double centerY = (lastDetections.getY1(j) + lastDetections.getY2(j)) / 2;
+            if(centerX < left || centerX > left + width ||
+                    centerY < top || centerY > top + height) {
+                merged.add(lastDetections, j);
+            }
         }
 
-        markWithBoundingBox(
-                matFile,
-                gridWidth,
-                gridHeight,
-                imageWidth,
-                imageHeight,
-                imageTimestamp);
+        final Detections detected = regionCandidates[0];
+        for(int j = 0; j < detected.size(); j++) {
+            merged.add(
+                    (float) (left + detected.getX1(j) * width),
+                    (float) (top + detected.getY1(j) * height),
+                    (float) (left + detected.getX2(j) * width),
+                    (float) (top + detected.getY2(j) * height),
+                    detected.getConfidence(j),
+                    detected.getPredictedClass(j));
+        }
+        return nonMaxSuppression.apply(merged, new Detections());
     }
 
-    private void markWithBoundingBox(
-            Mat matFile,
-            int gridWidth,
-            int gridHeight,
-            int imageWidth,
-            int imageHeight,
-            long imageTimestamp) {
+    private static Detections copy(Detections detections) {
+        final Detections copy = new Detections(detections.size());
+        for(int i = 0; i < detections.size(); i++) {
+            copy.add(detections, i);
+        }
+        return copy;
+    }
+
+    private void publish(FrameTask task) {
+
+        markWithBoundingBox(
+                task.mat,
+                task.getImageWidth(),
+                task.getImageHeight(),
+                task.getTimestamp(),
+                task.detections,
+                task.detected);
+
+        if(debugImageDump) {
+            JavaCVHelper.saveMatToJPG(task.mat, task.getImageWidth(), task.getImageHeight(),
+                    "frame-prediction.jpg");
+        }
 
-        if (predictedObjects != null) {
+        // Push to stream
+        httpStreamService.publish(task.mat);
+        endToEndLatency.recordSince(task.decodedNanos);
 
-            final ArrayList<DetectedObject> detectedObjects =
-                    new ArrayList<>(predictedObjects);
+        if(skipController != null) {
+            skipController.recordPublished(task.decodedNanos);
+            if(skipController.getProcessedFrames() % 100 == 0) {
+                log.debug("Adaptive frame skip: " + skipController);
+            }
+        }
 
-            while(!detectedObjects.isEmpty()) {
+        if(motionGate != null && task.inferenceRequired &&
+                motionGate.getFrames() % 100 == 0) {
+            log.debug("Motion gate: " + motionGate);
+        }
+    }
 
-                Optional<DetectedObject> maxDetectedObjectOptional =
-                        detectedObjects.stream().max((detectedObject1, detectedObject2) ->
-                                ((Double) detectedObject1.getConfidence())
-                                        .compareTo(detectedObject2.getConfidence())
-                        );
+    /**
+     * @return  the adaptive skip controller of the running detection, null if adaptiveSkip is off
+     * */
+    public AdaptiveFrameSkipController getSkipController() {
+        return skipController;
+    }
+
+    /**
+     * @return  the motion gate with its skip counters, null if motionGateEnabled is off
+     * */
+    public MotionGate getMotionGate() {
+        return motionGate;
+    }
 
-                if(maxDetectedObjectOptional.isPresent()) {
+    static HashMap<Integer, String> prepareLabels() {
+        final String sponsors = "<USE YOUR OWN LABELS>";
+        final String[] sponsorsList = sponsors.split(",");
 
-                    DetectedObject maxDetectedObject = maxDetectedObjectOptional.get();
-                    removeObjectsIntersectingWithMax(detectedObjects, maxDetectedObject);
-                    detectedObjects.remove(maxDetectedObject);
+        int i=0;
+        final HashMap<Integer, String> labels = new HashMap<>();
+        for(String sponsor: sponsorsList) {
+            labels.put(i++, sponsor);
+        }
+        log.debug(labels.toString());
+        return labels;
+    }
 
-                    markWithBoundingBox(
-                            matFile,
-                            gridWidth,
-                            gridHeight,
-                            imageWidth,
-                            imageHeight,
-                            imageTimestamp,
-                            maxDetectedObject);
-                }
+    private void appendPrediction(String content) {
+        try {
+            predictionSink.append(content);
+        } catch(IOException ioe) {
+            log.error("Error saving prediction", ioe);
+        }
+    }
+
+    private void markWithBoundingBox(
+            Mat matFile,
+            int imageWidth,
+            int imageHeight,
+            long imageTimestamp,
+            Detections detections,
+            boolean recordPrediction) {
+
+        if (detections != null) {
+            for(int i = 0; i < detections.size(); i++) {
+                markWithBoundingBox(
+                        matFile,
+                        imageWidth,
+                        imageHeight,
+                        imageTimestamp,
+                        detections,
+                        i,
+                        recordPrediction);
             }
         }
     }
 
     private void markWithBoundingBox(
             Mat matFile,
-            int gridWidth,
-            int gridHeight,
             int imageWidth,
             int imageHeight,
             long imageTimestamp,
-            DetectedObject detectedObject) {
+            Detections detections,
+            int i,
+            boolean recordPrediction) {
+
+        int predictedClass = detections.getPredictedClass(i);
+        double confidence = detections.getConfidence(i);
 
-        double[] xy1 = detectedObject.getTopLeftXY();
-        double[] xy2 = detectedObject.getBottomRightXY();
-        int predictedClass = detectedObject.getPredictedClass();
-        double confidence = detectedObject.getConfidence();
+        drawBoundingBox(matFile, imageWidth, imageHeight, detections, i, labels);
+
+        // Tracked and reused boxes are only drawn, the prediction log keeps what the model detected
+        if(recordPrediction) {
+            appendPrediction(
+                    labels.get(predictedClass) +
+                            ";" + Math.round(confidence*100) +
+                            ";" + imageTimestamp);
+        }
+    }
+
+    /**
+     * Draw box i of the detections with its label onto the frame.
+     * */
+    static void drawBoundingBox(
+            Mat matFile,
+            int imageWidth,
+            int imageHeight,
+            Detections detections,
+            int i,
+            HashMap<Integer, String> labels) {
 
-        int x1 = (int) Math.round(imageWidth * xy1[0] / gridWidth);
-        int y1 = (int) Math.round(imageHeight * xy1[1] / gridHeight);
-        int x2 = (int) Math.round(imageWidth * xy2[0] / gridWidth);
-        int y2 = (int) Math.round(imageHeight * xy2[1] / gridHeight);
+        int x1 = Math.round(imageWidth * detections.getX1(i));
+        int y1 = Math.round(imageHeight * detections.getY1(i));
+        int x2 = Math.round(imageWidth * detections.getX2(i));
+        int y2 = Math.round(imageHeight * detections.getY2(i));
 
         rectangle(matFile,
                 new Point(x1, y1),
                 new Point(x2, y2),
                 Scalar.GREEN);
 
-        putText(matFile, labels.get(predictedClass) + ", " + Math.round(confidence*100) + "%",
+        putText(matFile, labels.get(detections.getPredictedClass(i)) + ", " +
+                        Math.round(detections.getConfidence(i)*100) + "%",
                 new Point(x1 + 2, y2 - 2),
                 FONT_HERSHEY_DUPLEX, 1,
                 Scalar.GREEN);
-
-        appendPrediction(
-                labels.get(predictedClass) +
-                        ";" + Math.round(confidence*100) +
-                        ";" + imageTimestamp);
-
-        s3Client.putObject(s3BucketName, s3KeyName, new File(this.predictionFileName));
-    }
-
-    private void removeObjectsIntersectingWithMax(
-            ArrayList<DetectedObject> detectedObjects,
-            DetectedObject maxObjectDetect) {
-
-        double[] bottomRightXYMax = maxObjectDetect.getBottomRightXY();
-        double[] topLeftXYMax = maxObjectDetect.getTopLeftXY();
-
-        List<DetectedObject> removeIntersectingObjects = new ArrayList<>();
-
-        for (DetectedObject detectedObject : detectedObjects) {
-
-            double[] topLeftXY = detectedObject.getTopLeftXY();
-            double[] bottomRightXY = detectedObject.getBottomRightXY();
-
-            double iox1 = Math.max(topLeftXY[0], topLeftXYMax[0]);
-            double ioy1 = Math.max(topLeftXY[1], topLeftXYMax[1]);
-
-            double iox2 = Math.min(bottomRightXY[0], bottomRightXYMax[0]);
-            double ioy2 = Math.min(bottomRightXY[1], bottomRightXYMax[1]);
-
-            double inter_area = (ioy2 - ioy1) * (iox2 - iox1);
-
-            double box1_area =
-                    (bottomRightXYMax[1] - topLeftXYMax[1]) * (bottomRightXYMax[0] - topLeftXYMax[0]);
-            double box2_area =
-                    (bottomRightXY[1] - topLeftXY[1]) * (bottomRightXY[0] - topLeftXY[0]);
-
-            double union_area = box1_area + box2_area - inter_area;
-            double iou = inter_area / union_area;
-
-            if (iou > 0.5) {
-                removeIntersectingObjects.add(detectedObject);
-            }
-        }
-
-        detectedObjects.removeAll(removeIntersectingObjects);
     }
 
     public static void main(String[] args) throws Exception {
         final File hyperParameters = new File(args[2]);
-        new ObjectDetectionInference(
-                ModelSerializer.restoreComputationGraph(args[0]), hyperParameters)
-                .startRealTimeVideoDetection(args[1]);
+        final ModelWarmup warmup = new ModelWarmup("ObjectDetectionInference");
+        final ComputationGraph model =
+                warmup.restore(() -> ModelSerializer.restoreComputationGraph(args[0]));
+
+        final ObjectDetectionInference objectDetectionInference =
+                new ObjectDetectionInference(model, hyperParameters);
+        objectDetectionInference.warmUp(warmup);
+        objectDetectionInference.startRealTimeVideoDetection(args[1]);
     }
 }
\ No newline at end of file
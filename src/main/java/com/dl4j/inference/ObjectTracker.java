@@ -0,0 +1,199 @@
+package com.dl4j.inference;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Carry detections over the frames in between two YOLO passes.
+ *
+ * After each detection pass the new boxes are matched to the existing tracks by IoU.
+ * Matched tracks take the new box and update their velocity, unmatched detections start
+ * new tracks, and tracks that were not detected again are dropped. On the frames in
+ * between, every track moves by its velocity and loses some confidence. A new detection
+ * pass is due after detectionInterval frames, or earlier once any track's confidence
+ * falls below minConfidence.
+ *
+ * update() and predict() are called from the inference thread, shouldDetect() from the
+ * preprocessing thread, which runs ahead of it.
+ * */
+public class ObjectTracker {
+
+    private final int detectionInterval;
+    private final double matchIouThreshold;
+    private final double confidenceDecay;
+    private final double minConfidence;
+
+    private final List<Track> tracks = new ArrayList<>();
+    private int framesSinceScheduled;
+    private volatile boolean detectionRequested = true;
+
+    /**
+     * @param detectionInterval run the detector at least every this many frames
+     * @param matchIouThreshold minimum IoU for a detection to continue an existing track
+     * @param confidenceDecay   factor applied to track confidence on every predicted frame
+     * @param minConfidence     request a detection pass once a track drops below this
+     * */
+    public ObjectTracker(
+            int detectionInterval,
+            double matchIouThreshold,
+            double confidenceDecay,
+            double minConfidence) {
+        this.detectionInterval = Math.max(1, detectionInterval);
+        this.matchIouThreshold = matchIouThreshold;
+        this.confidenceDecay = confidenceDecay;
+        this.minConfidence = minConfidence;
+    }
+
+    /**
+     * Decide, in frame order, whether the next frame goes through the detector.
+     * */
+    public boolean shouldDetect() {
+        if(detectionRequested || ++framesSinceScheduled >= detectionInterval) {
+            detectionRequested = false;
+            framesSinceScheduled = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Feed the detections of a frame that went through the detector.
+     * @param out   receives the current tracks
+     * */
+    public Detections update(Detections detections, Detections out) {
+        final boolean[] used = new boolean[detections.size()];
+
+        for(Iterator<Track> iterator = tracks.iterator(); iterator.hasNext(); ) {
+            final Track track = iterator.next();
+
+            int best = -1;
+            double bestIou = matchIouThreshold;
+            for(int i = 0; i < detections.size(); i++) {
+                if(used[i] || detections.getPredictedClass(i) != track.predictedClass) {
+                    continue;
+                }
+                final double iou = track.iou(detections, i);
+                if(iou > bestIou) {
+                    bestIou = iou;
+                    best = i;
+                }
+            }
+
+            if(best < 0) {
+                iterator.remove();
+            } else {
+                used[best] = true;
+                track.correct(detections, best);
+            }
+        }
+
+        for(int i = 0; i < detections.size(); i++) {
+            if(!used[i]) {
+                tracks.add(new Track(detections, i));
+            }
+        }
+        return write(out);
+    }
+
+    /**
+     * Move the tracks one frame ahead, for a frame that skipped the detector.
+     * @param out   receives the predicted tracks
+     * */
+    public Detections predict(Detections out) {
+        for(Track track: tracks) {
+            track.predict(confidenceDecay);
+            if(track.confidence < minConfidence) {
+                detectionRequested = true;
+            }
+        }
+        return write(out);
+    }
+
+    private Detections write(Detections out) {
+        out.clear();
+        for(Track track: tracks) {
+            out.add(
+                    (float) (track.centerX - track.width / 2),
+                    (float) (track.centerY - track.height / 2),
+                    (float) (track.centerX + track.width / 2),
+                    (float) (track.centerY + track.height / 2),
+                    (float) track.confidence,
+                    track.predictedClass);
+        }
+        return out;
+    }
+
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    private static class Track {
+        // weight of the newly measured velocity against the previous estimate
+        private static final double VELOCITY_GAIN = 0.5;
+
+        private final int predictedClass;
+        private double centerX;
+        private double centerY;
+        private double width;
+        private double height;
+        private double velocityX;
+        private double velocityY;
+        private double confidence;
+        private double detectedX;
+        private double detectedY;
+        private int framesSinceDetected;
+
+        Track(Detections detections, int i) {
+            this.predictedClass = detections.getPredictedClass(i);
+            set(detections, i);
+        }
+
+        void correct(Detections detections, int i) {
+            final int frames = framesSinceDetected + 1;
+            final double newX = (detections.getX1(i) + detections.getX2(i)) / 2;
+            final double newY = (detections.getY1(i) + detections.getY2(i)) / 2;
+
+            velocityX += VELOCITY_GAIN * ((newX - detectedX) / frames - velocityX);
+            velocityY += VELOCITY_GAIN * ((newY - detectedY) / frames - velocityY);
+            set(detections, i);
+        }
+
+        void predict(double confidenceDecay) {
+            centerX += velocityX;
+            centerY += velocityY;
+            confidence *= confidenceDecay;
+            framesSinceDetected++;
+        }
+
+        private void set(Detections detections, int i) {
+            centerX = (detections.getX1(i) + detections.getX2(i)) / 2;
+            centerY = (detections.getY1(i) + detections.getY2(i)) / 2;
+            width = detections.getX2(i) - detections.getX1(i);
+            height = detections.getY2(i) - detections.getY1(i);
+            confidence = detections.getConfidence(i);
+            detectedX = centerX;
+            detectedY = centerY;
+            framesSinceDetected = 0;
+        }
+
+        double iou(Detections detections, int i) {
+            final double x1 = centerX - width / 2;
+            final double y1 = centerY - height / 2;
+            final double x2 = centerX + width / 2;
+            final double y2 = centerY + height / 2;
+
+            final double intersectionWidth =
+                    Math.min(x2, detections.getX2(i)) - Math.max(x1, detections.getX1(i));
+            final double intersectionHeight =
+                    Math.min(y2, detections.getY2(i)) - Math.max(y1, detections.getY1(i));
+            if(intersectionWidth <= 0 || intersectionHeight <= 0) {
+                return 0;
+            }
+            final double intersection = intersectionWidth * intersectionHeight;
+            final double area = (detections.getX2(i) - detections.getX1(i)) *
+                    (detections.getY2(i) - detections.getY1(i));
+            return intersection / (width * height + area - intersection);
+        }
+    }
+}
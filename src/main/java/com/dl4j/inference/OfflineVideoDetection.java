@@ -0,0 +1,358 @@
+package com.dl4j.inference;
+
+import com.dl4j.models.ObjectDetectionGeometry;
+import com.dl4j.prediction.UploadTarget;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVStream;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.javacpp.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
+
+/**
+ * Detect objects in a video file as fast as possible, for archived footage that does not
+ * need real time.
+ *
+ * The keyframes are found from the packet headers without decoding, and the video is cut
+ * at the keyframes closest to offlineSegments equal parts. Every segment is decoded by its
+ * own grabber, which can seek straight to its first keyframe, and runs through the model on
+ * offlineWorkers threads with one model copy each. The detections of all segments are
+ * merged in timestamp order into one predictions file. Given an output path, a last
+ * sequential pass draws them into an annotated copy of the video.
+ *
+ * The same frames are processed as in real time mode with a fixed skip: frames 1,
+ * 1 + skipFrame, 1 + 2 * skipFrame and so on, like the {@link FrameDecoder}. They are
+ * counted from the timestamp, so the result does not depend on where the segments are cut.
+ * adaptiveSkip does not apply here, offline there is no real time to fall behind.
+ *
+ * Usage: OfflineVideoDetection modelPath videoPath configPath [outputVideoPath]
+ * */
+public class OfflineVideoDetection {
+
+    private static Logger log =
+            LoggerFactory.getLogger(OfflineVideoDetection.class);
+
+    private final double detectionThreshold = 0.5;
+
+    private final Properties hyperParameters;
+    private final ObjectDetectionGeometry geometry;
+    private final BlockingQueue<ComputationGraph> models;
+    private final HashMap<Integer, String> labels;
+    private final int skipFrame;
+    private final int workers;
+    private final int segments;
+    private final int inferenceBatchSize;
+
+    public OfflineVideoDetection(ComputationGraph model, File hyperParametersFile)
+            throws IOException {
+
+        this.hyperParameters = new Properties();
+        hyperParameters.load(new FileInputStream(hyperParametersFile));
+        this.geometry = ObjectDetectionGeometry.fromProperties(hyperParameters);
+
+        this.skipFrame = Integer.parseInt(hyperParameters.getProperty("skipFrame"));
+        this.workers = Integer.parseInt(hyperParameters.getProperty("offlineWorkers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.segments = Integer.parseInt(hyperParameters.getProperty("offlineSegments",
+                String.valueOf(workers * 2)));
+        this.inferenceBatchSize = Integer.parseInt(
+                hyperParameters.getProperty("inferenceBatchSize", "1"));
+
+        this.models = new ArrayBlockingQueue<>(workers);
+        models.add(model);
+        for(int i = 1; i < workers; i++) {
+            models.add(model.clone());
+        }
+        this.labels = ObjectDetectionInference.prepareLabels();
+    }
+
+    /**
+     * @param videoPath         video file to process
+     * @param outputVideoPath   where to write the annotated video, null to skip it
+     * @return  the predictions file
+     * */
+    public File process(String videoPath, String outputVideoPath) throws Exception {
+
+        final long start = System.currentTimeMillis();
+        final List<Long> boundaries = segmentBoundaries(findKeyFrames(videoPath), segments);
+        log.debug("Processing " + videoPath + " in " + (boundaries.size() - 1) +
+                " segments on " + workers + " threads");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        final TreeMap<Long, Detections> detections = new TreeMap<>();
+        try {
+            final List<Future<TreeMap<Long, Detections>>> results = new ArrayList<>();
+            for(int i = 0; i < boundaries.size() - 1; i++) {
+                final long from = boundaries.get(i);
+                final long to = boundaries.get(i + 1);
+                results.add(executor.submit(() -> processSegment(videoPath, from, to)));
+            }
+            for(Future<TreeMap<Long, Detections>> result: results) {
+                detections.putAll(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.debug("Detected " + detections.size() + " frames in " +
+                (System.currentTimeMillis() - start) + " ms");
+
+        final File predictions = writePredictions(detections);
+        if(outputVideoPath != null) {
+            writeAnnotatedVideo(videoPath, outputVideoPath, detections);
+        }
+        return predictions;
+    }
+
+    /**
+     * @return  timestamps in microseconds of the video keyframes, read from packet headers only
+     * */
+    private static List<Long> findKeyFrames(String videoPath) throws IOException {
+        final FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(videoPath);
+        frameGrabber.start();
+        try {
+            final AVFormatContext formatContext = frameGrabber.getFormatContext();
+            int videoStream = -1;
+            for(int i = 0; i < formatContext.nb_streams(); i++) {
+                if(formatContext.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
+                    videoStream = i;
+                    break;
+                }
+            }
+            if(videoStream < 0) {
+                throw new IOException("No video stream in " + videoPath);
+            }
+            final AVStream stream = formatContext.streams(videoStream);
+            final long num = stream.time_base().num();
+            final long den = stream.time_base().den();
+
+            final List<Long> keyFrames = new ArrayList<>();
+            AVPacket packet;
+            while((packet = frameGrabber.grabPacket()) != null) {
+                if(packet.stream_index() == videoStream && (packet.flags() & AV_PKT_FLAG_KEY) != 0) {
+                    final long pts = packet.pts() != AV_NOPTS_VALUE ? packet.pts() : packet.dts();
+                    keyFrames.add(1000000L * pts * num / den);
+                }
+            }
+            keyFrames.sort(null);
+            return keyFrames;
+        } finally {
+            frameGrabber.stop();
+        }
+    }
+
+    /**
+     * Pick the keyframes closest to equal parts of the video as segment starts.
+     * @return  segment start timestamps, followed by Long.MAX_VALUE as the end of the last one
+     * */
+    private static List<Long> segmentBoundaries(List<Long> keyFrames, int segments) {
+        final List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        if(keyFrames.size() > 1) {
+            final long duration = keyFrames.get(keyFrames.size() - 1);
+            for(int i = 1; i < segments; i++) {
+                final long target = duration * i / segments;
+                long closest = keyFrames.get(0);
+                for(long keyFrame: keyFrames) {
+                    if(Math.abs(keyFrame - target) < Math.abs(closest - target)) {
+                        closest = keyFrame;
+                    }
+                }
+                if(closest > boundaries.get(boundaries.size() - 1)) {
+                    boundaries.add(closest);
+                }
+            }
+        }
+        boundaries.add(Long.MAX_VALUE);
+        return boundaries;
+    }
+
+    /**
+     * Decode and detect the frames with timestamps in [from, to).
+     * */
+    private TreeMap<Long, Detections> processSegment(String videoPath, long from, long to)
+            throws Exception {
+
+        final ComputationGraph model = models.take();
+        final FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(videoPath);
+        try {
+            frameGrabber.start();
+            if(from > 0) {
+                frameGrabber.setTimestamp(from);
+            }
+            final double frameRate = frameGrabber.getFrameRate();
+
+            final ImagePreprocessor imagePreprocessor = new ImagePreprocessor(
+                    geometry.getInputWidth(),
+                    geometry.getInputHeight(),
+                    Double.parseDouble(hyperParameters.getProperty("inputScale", "1")),
+                    Boolean.parseBoolean(hyperParameters.getProperty("swapRB", "false")),
+                    Boolean.parseBoolean(hyperParameters.getProperty("letterbox", "false")),
+                    inferenceBatchSize);
+            final YoloOutputDecoder outputDecoder =
+                    YoloOutputDecoder.forModel(model, detectionThreshold);
+            final NonMaxSuppression nonMaxSuppression = new NonMaxSuppression(
+                    Double.parseDouble(hyperParameters.getProperty("nmsIouThreshold", "0.5")),
+                    Boolean.parseBoolean(hyperParameters.getProperty("nmsPerClass", "false")),
+                    Integer.parseInt(hyperParameters.getProperty("nmsTopK", "0")));
+            final OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+
+            final TreeMap<Long, Detections> detections = new TreeMap<>();
+            final List<INDArray> inputs = new ArrayList<>(inferenceBatchSize);
+            final List<Long> timestamps = new ArrayList<>(inferenceBatchSize);
+
+            Frame frame;
+            while((frame = frameGrabber.grabImage()) != null && frame.timestamp < to) {
+                if(frame.timestamp < from ||
+                        (Math.round(frame.timestamp * frameRate / 1e6) - 1) % skipFrame != 0) {
+                    continue;
+                }
+
+                inputs.add(imagePreprocessor.process(converter.convert(frame)));
+                timestamps.add(frame.timestamp);
+                if(inputs.size() == inferenceBatchSize) {
+                    detect(model, outputDecoder, nonMaxSuppression, imagePreprocessor,
+                            frame.imageWidth, frame.imageHeight, inputs, timestamps, detections);
+                }
+            }
+            if(!inputs.isEmpty()) {
+                detect(model, outputDecoder, nonMaxSuppression, imagePreprocessor,
+                        frameGrabber.getImageWidth(), frameGrabber.getImageHeight(),
+                        inputs, timestamps, detections);
+            }
+
+            log.debug("Segment from " + from + " us done, " + detections.size() + " frames");
+            return detections;
+        } finally {
+            frameGrabber.stop();
+            models.add(model);
+        }
+    }
+
+    private void detect(
+            ComputationGraph model,
+            YoloOutputDecoder outputDecoder,
+            NonMaxSuppression nonMaxSuppression,
+            ImagePreprocessor imagePreprocessor,
+            int imageWidth,
+            int imageHeight,
+            List<INDArray> inputs,
+            List<Long> timestamps,
+            Map<Long, Detections> detections) {
+
+        final INDArray output = model.outputSingle(inputs.size() == 1 ?
+                inputs.get(0) : Nd4j.concat(0, inputs.toArray(new INDArray[0])));
+
+        final Detections[] candidates = new Detections[inputs.size()];
+        for(int i = 0; i < candidates.length; i++) {
+            candidates[i] = new Detections();
+        }
+        outputDecoder.decode(output, candidates);
+
+        for(int i = 0; i < candidates.length; i++) {
+            imagePreprocessor.release(inputs.get(i));
+            final Detections kept = nonMaxSuppression.apply(candidates[i], new Detections());
+            imagePreprocessor.toImageCoordinates(kept, imageWidth, imageHeight);
+            detections.put(timestamps.get(i), kept);
+        }
+        inputs.clear();
+        timestamps.clear();
+    }
+
+    private File writePredictions(TreeMap<Long, Detections> detections) throws IOException {
+        final File file = new File(System.getProperty("user.dir"),
+                "predictions-" + Instant.now().toEpochMilli() + ".csv");
+
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for(Map.Entry<Long, Detections> entry: detections.entrySet()) {
+                final Detections frameDetections = entry.getValue();
+                for(int i = 0; i < frameDetections.size(); i++) {
+                    writer.write(labels.get(frameDetections.getPredictedClass(i)) +
+                            ";" + Math.round(frameDetections.getConfidence(i) * 100) +
+                            ";" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+        }
+
+        final UploadTarget uploadTarget = ObjectDetectionInference.createUploadTarget(hyperParameters);
+        uploadTarget.upload(hyperParameters.getProperty("s3KeyName", "") + file.getName(), file);
+        log.debug("Predictions written to " + file);
+        return file;
+    }
+
+    /**
+     * Copy the video with the boxes drawn in, every frame showing the latest detections.
+     * */
+    private void writeAnnotatedVideo(
+            String videoPath,
+            String outputVideoPath,
+            TreeMap<Long, Detections> detections) throws Exception {
+
+        final FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(videoPath);
+        frameGrabber.start();
+
+        final FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
+                outputVideoPath, frameGrabber.getImageWidth(), frameGrabber.getImageHeight());
+        recorder.setVideoCodec(AV_CODEC_ID_H264);
+        recorder.setFrameRate(frameGrabber.getFrameRate());
+        recorder.start();
+
+        try {
+            final OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+            Frame frame;
+            while((frame = frameGrabber.grabImage()) != null) {
+                final Map.Entry<Long, Detections> entry = detections.floorEntry(frame.timestamp);
+                if(entry != null) {
+                    // The Mat shares the frame buffer, so drawing on it changes the frame
+                    final Mat mat = converter.convert(frame);
+                    for(int i = 0; i < entry.getValue().size(); i++) {
+                        ObjectDetectionInference.drawBoundingBox(mat,
+                                frame.imageWidth, frame.imageHeight, entry.getValue(), i, labels);
+                    }
+                }
+                recorder.record(frame);
+            }
+        } finally {
+            recorder.stop();
+            frameGrabber.stop();
+        }
+        log.debug("Annotated video written to " + outputVideoPath);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new OfflineVideoDetection(
+                ModelSerializer.restoreComputationGraph(args[0]), new File(args[2]))
+                .process(args[1], args.length > 3 ? args[3] : null);
+    }
+}
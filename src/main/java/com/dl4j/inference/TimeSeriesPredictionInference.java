@@ -1,6 +1,5 @@
 package com.dl4j.inference;
 
-import java.io.IOException;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -9,6 +8,10 @@ import org.nd4j.linalg.factory.Nd4j;
 /**
  * This is the template to dockerize the inference codes for SageMaker.
  * Use with DL4J-SageMaker.
+ *
+ * Every ping or invoke is a new process that answers once, so a warm-up pass would only
+ * run the model one more time before the request. Warm-up is therefore off by default;
+ * set -DwarmupIterations to a positive number when the model is kept serving requests.
  * */
 public class TimeSeriesPredictionInference {
 
@@ -16,6 +19,7 @@ public class TimeSeriesPredictionInference {
     private static String model;
     private static String data;
     private static MultiLayerNetwork net;
+    private static ModelWarmup warmup = new ModelWarmup("TimeSeriesPredictionInference");
 
     public static void main(String[] args) throws Exception {
         mode = args[0];
@@ -32,16 +36,35 @@ public class TimeSeriesPredictionInference {
         }
     }
 
-    private static void ping() throws IOException {
-        net = ModelSerializer.restoreMultiLayerNetwork(model);
+    private static void ping() throws Exception {
+        start();
         System.out.println("OK");
     }
 
-    private static void invoke() throws IOException {
-        net = ModelSerializer.restoreMultiLayerNetwork(model);
+    private static void invoke() throws Exception {
+        start();
+        final long requestStart = System.nanoTime();
         float[] dataArray = new float[] {Float.parseFloat(data)};
         INDArray input = Nd4j.create(dataArray);
         INDArray output = net.rnnTimeStep(input);
+        warmup.recordFirstRequest(requestStart);
         System.out.println(output);
     }
+
+    /**
+     * Restore the model and run the warm-up passes shaped like a request, if any.
+     * */
+    private static void start() throws Exception {
+        net = warmup.restore(() -> ModelSerializer.restoreMultiLayerNetwork(model));
+
+        final int warmupIterations = Integer.getInteger("warmupIterations", 0);
+        if(warmupIterations > 0) {
+            final INDArray input = Nd4j.create(new float[] {0});
+            warmup.warmUp(warmupIterations, () -> net.rnnTimeStep(input));
+
+            // Warm-up must not leave its steps in the recurrent state of the real request
+            net.rnnClearPreviousState();
+        }
+        warmup.ready();
+    }
 }
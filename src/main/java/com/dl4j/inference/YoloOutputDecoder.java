@@ -0,0 +1,126 @@
+package com.dl4j.inference;
+
+import java.nio.FloatBuffer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Decode the Yolo2OutputLayer activations of a whole batch straight into {@link Detections}.
+ *
+ * The output layer has already applied sigmoid to x, y and confidence, exp times the
+ * prior box to w and h, and softmax to the class scores. What is left is reading the
+ * [minibatch, boxes * (5 + classes), gridHeight, gridWidth] array, dropping boxes below
+ * the threshold and taking the arg max class. The activations are copied out with one
+ * bulk read into a reused float array, instead of one getDouble call per value and a
+ * DetectedObject plus class INDArray per box as Yolo2OutputLayer.getPredictedObjects does.
+ * */
+public class YoloOutputDecoder {
+
+    private final int numberOfBoundingBoxes;
+    private final double detectionThreshold;
+
+    private float[] values = new float[0];
+
+    /**
+     * @param numberOfBoundingBoxes number of prior boxes per grid cell
+     * @param detectionThreshold    minimum object confidence to keep a box
+     * */
+    public YoloOutputDecoder(int numberOfBoundingBoxes, double detectionThreshold) {
+        this.numberOfBoundingBoxes = numberOfBoundingBoxes;
+        this.detectionThreshold = detectionThreshold;
+    }
+
+    /**
+     * Create a decoder for the prior boxes configured on the model's Yolo2OutputLayer.
+     * */
+    public static YoloOutputDecoder forModel(ComputationGraph model, double detectionThreshold) {
+        final org.deeplearning4j.nn.conf.layers.objdetect.Yolo2OutputLayer outputLayer =
+                (org.deeplearning4j.nn.conf.layers.objdetect.Yolo2OutputLayer)
+                        model.getOutputLayer(0).conf().getLayer();
+        return new YoloOutputDecoder(
+                (int) outputLayer.getBoundingBoxes().size(0), detectionThreshold);
+    }
+
+    /**
+     * @param output        activations of the output layer
+     * @param detections    one target per example in the batch, cleared before use
+     * */
+    public void decode(INDArray output, Detections[] detections) {
+
+        final int minibatch = (int) output.size(0);
+        final int channels = (int) output.size(1);
+        final int gridHeight = (int) output.size(2);
+        final int gridWidth = (int) output.size(3);
+        final int valuesPerBox = channels / numberOfBoundingBoxes;
+        final int numberOfClasses = valuesPerBox - 5;
+        final int plane = gridHeight * gridWidth;
+
+        final float[] a = read(output);
+
+        for(int example = 0; example < minibatch; example++) {
+            final Detections target = detections[example];
+            target.clear();
+
+            for(int box = 0; box < numberOfBoundingBoxes; box++) {
+                final int base = (example * numberOfBoundingBoxes + box) * valuesPerBox * plane;
+
+                for(int y = 0; y < gridHeight; y++) {
+                    for(int x = 0; x < gridWidth; x++) {
+                        final int cell = base + y * gridWidth + x;
+
+                        final float confidence = a[cell + 4 * plane];
+                        if(confidence < detectionThreshold) {
+                            continue;
+                        }
+
+                        // x and y are offsets within the cell, w and h are in grid units
+                        final float centerX = (x + a[cell]) / gridWidth;
+                        final float centerY = (y + a[cell + plane]) / gridHeight;
+                        final float halfWidth = a[cell + 2 * plane] / gridWidth / 2;
+                        final float halfHeight = a[cell + 3 * plane] / gridHeight / 2;
+
+                        int predictedClass = 0;
+                        float best = a[cell + 5 * plane];
+                        for(int c = 1; c < numberOfClasses; c++) {
+                            final float p = a[cell + (5 + c) * plane];
+                            if(p > best) {
+                                best = p;
+                                predictedClass = c;
+                            }
+                        }
+
+                        target.add(
+                                centerX - halfWidth,
+                                centerY - halfHeight,
+                                centerX + halfWidth,
+                                centerY + halfHeight,
+                                confidence,
+                                predictedClass);
+                    }
+                }
+            }
+        }
+    }
+
+    private float[] read(INDArray output) {
+        final INDArray contiguous = output.isView() || output.ordering() != 'c' ?
+                output.dup('c') : output;
+        final int length = (int) contiguous.length();
+        if(values.length < length) {
+            values = new float[length];
+        }
+
+        final DataBuffer data = contiguous.data();
+        if(data.dataType() == DataBuffer.Type.FLOAT) {
+            final FloatBuffer floatBuffer = data.asNioFloat();
+            floatBuffer.position((int) contiguous.offset());
+            floatBuffer.get(values, 0, length);
+        } else {
+            for(int i = 0; i < length; i++) {
+                values[i] = contiguous.getFloat(i);
+            }
+        }
+        return values;
+    }
+}
@@ -1,19 +1,68 @@
 package com.dl4j.javacv;
 
+import com.dl4j.recognition.FaceDetector;
+import com.dl4j.recognition.FaceEmbedder;
+import com.dl4j.recognition.FlatFaceIndex;
+import com.dl4j.recognition.LocalFaceRecognizer;
+import com.dl4j.recognition.StubRecognitionBackend;
 import com.dl4j.server.HttpWebCamRekognitionStreamServer;
+import com.dl4j.server.MjpegStreamServer;
+import java.io.File;
+import java.nio.file.Path;
+import org.deeplearning4j.util.ModelSerializer;
 
 /**
  * This main program show how we start a webcam stream using JavaCV.
  * Useful when we want to do some real time ML inference.
+ * Run with the argument "stub" to recognize faces without Rekognition, or with
+ * "local modelPath cascadePath galleryDirectory" to match faces in process against the
+ * labelled face images of the gallery directory. The embeddings of the gallery are kept
+ * in faces.idx in that directory and only computed again when it is deleted.
  * */
 public class WebCamStream {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
 //        HttpWebCamS3StreamServer httpWebCamS3StreamServer =
 //                new HttpWebCamS3StreamServer(7000, 0);
 //        new Thread(httpWebCamS3StreamServer).start();
 
-        HttpWebCamRekognitionStreamServer httpWebCamRekognitionStreamServer =
-                new HttpWebCamRekognitionStreamServer(7000, 0);
+        final HttpWebCamRekognitionStreamServer httpWebCamRekognitionStreamServer;
+        if(args.length > 0 && "stub".equals(args[0])) {
+            httpWebCamRekognitionStreamServer = new HttpWebCamRekognitionStreamServer(7000, 0,
+                    MjpegStreamServer.DEFAULT_MAX_CONNECTIONS,
+                    MjpegStreamServer.DEFAULT_IDLE_TIMEOUT_MILLIS,
+                    new StubRecognitionBackend(200, 0));
+        } else if(args.length > 3 && "local".equals(args[0])) {
+            httpWebCamRekognitionStreamServer = new HttpWebCamRekognitionStreamServer(7000, 0,
+                    MjpegStreamServer.DEFAULT_MAX_CONNECTIONS,
+                    MjpegStreamServer.DEFAULT_IDLE_TIMEOUT_MILLIS,
+                    createLocalRecognizer(new File(args[1]), new File(args[2]), new File(args[3])));
+        } else {
+            httpWebCamRekognitionStreamServer = new HttpWebCamRekognitionStreamServer(7000, 0);
+        }
         new Thread(httpWebCamRekognitionStreamServer).start();
     }
+
+    private static LocalFaceRecognizer createLocalRecognizer(
+            File modelFile,
+            File cascadeFile,
+            File galleryDirectory) throws Exception {
+
+        // FaceNetNN4Small2 takes 96x96 faces
+        final FaceEmbedder faceEmbedder = new FaceEmbedder(
+                ModelSerializer.restoreComputationGraph(modelFile), 96, 96);
+        final FaceDetector faceDetector = new FaceDetector(cascadeFile, 48);
+
+        final Path indexPath = new File(galleryDirectory, "faces.idx").toPath();
+        if(indexPath.toFile().isFile()) {
+            return new LocalFaceRecognizer(
+                    faceDetector, faceEmbedder, FlatFaceIndex.load(indexPath));
+        }
+
+        final FlatFaceIndex gallery = new FlatFaceIndex(faceEmbedder.getDimension());
+        final LocalFaceRecognizer recognizer =
+                new LocalFaceRecognizer(faceDetector, faceEmbedder, gallery);
+        recognizer.enrollDirectory(galleryDirectory);
+        gallery.save(indexPath);
+        return recognizer;
+    }
 }
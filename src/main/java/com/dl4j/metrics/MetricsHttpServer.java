@@ -0,0 +1,56 @@
+package com.dl4j.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serve a {@link MetricsRegistry} on http://host:port/metrics in the Prometheus text format,
+ * using the HTTP server that comes with the JDK.
+ * */
+public class MetricsHttpServer implements Closeable {
+
+    private static Logger log =
+            LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public MetricsHttpServer(int port, MetricsRegistry registry) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server.createContext("/metrics", exchange -> respond(exchange, registry));
+        server.setExecutor(executor);
+        server.start();
+        log.debug("Metrics server running on localhost:" + port + "/metrics");
+    }
+
+    private static void respond(HttpExchange exchange, MetricsRegistry registry) throws IOException {
+        final byte[] body = registry.toPrometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,196 @@
+package com.dl4j.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, gauges and latency histograms of one application.
+ *
+ * Metrics are created on first use and live as long as the registry. They can be
+ * rendered in the Prometheus text format, see {@link MetricsHttpServer}, and registered
+ * as a single JMX bean whose attributes are the current values.
+ * */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String prefix;
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private ObjectName mBeanName;
+
+    /**
+     * @param prefix    put in front of every metric name, e.g. "object_detection"
+     * */
+    public MetricsRegistry(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Register a value that is read whenever the metrics are collected, replacing
+     * an earlier gauge of the same name.
+     * */
+    public void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Render all metrics in the Prometheus text exposition format. Histograms are
+     * written as summaries in seconds.
+     * */
+    public String toPrometheus() {
+        final StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, LongAdder> counter: counters.entrySet()) {
+            final String name = prefix + "_" + counter.getKey() + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for(Map.Entry<String, DoubleSupplier> gauge: gauges.entrySet()) {
+            final String name = prefix + "_" + gauge.getKey();
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(format(gauge.getValue().getAsDouble())).append('\n');
+        }
+        for(Map.Entry<String, LatencyHistogram> histogram: histograms.entrySet()) {
+            final String name = prefix + "_" + histogram.getKey() + "_seconds";
+            final LatencyHistogram value = histogram.getValue();
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for(double quantile: QUANTILES) {
+                sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(format(value.getValueAtQuantile(quantile) / 1e9)).append('\n');
+            }
+            sb.append(name).append("_sum ").append(format(value.getSum() / 1e9)).append('\n');
+            sb.append(name).append("_count ").append(value.getCount()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.9g", value);
+    }
+
+    /**
+     * Expose the metrics as attributes of one JMX bean, histograms as count, mean,
+     * p50, p99 and max in milliseconds.
+     * @param objectName    e.g. "com.dl4j:type=ObjectDetectionInference"
+     * */
+    public synchronized void registerMBean(String objectName) throws JMException {
+        final ObjectName name = new ObjectName(objectName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+        mBeanName = name;
+    }
+
+    /**
+     * Remove the bean of {@link #registerMBean(String)}, so the name can be registered
+     * again, e.g. by a server restarted on the same port. Does nothing when no bean is
+     * registered.
+     * */
+    public synchronized void unregisterMBean() throws JMException {
+        if(mBeanName == null) {
+            return;
+        }
+        final ObjectName name = mBeanName;
+        mBeanName = null;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+
+    private class MetricsMBean implements DynamicMBean {
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if(counters.containsKey(attribute)) {
+                return counters.get(attribute).sum();
+            }
+            if(gauges.containsKey(attribute)) {
+                return gauges.get(attribute).getAsDouble();
+            }
+
+            final int separator = attribute.lastIndexOf('_');
+            final LatencyHistogram histogram = separator < 0 ?
+                    null : histograms.get(attribute.substring(0, separator));
+            if(histogram != null) {
+                switch(attribute.substring(separator + 1)) {
+                    case "count":
+                        return (double) histogram.getCount();
+                    case "meanMillis":
+                        return histogram.getMean() / 1e6;
+                    case "p50Millis":
+                        return histogram.getValueAtQuantile(0.5) / 1e6;
+                    case "p99Millis":
+                        return histogram.getValueAtQuantile(0.99) / 1e6;
+                    case "maxMillis":
+                        return histogram.getMax() / 1e6;
+                    default:
+                        break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            final AttributeList list = new AttributeList();
+            for(String attribute: attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch(AttributeNotFoundException e) {
+                    // leave unknown attributes out, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for(String name: counters.keySet()) {
+                attributes.add(attribute(name, "long"));
+            }
+            for(String name: gauges.keySet()) {
+                attributes.add(attribute(name, "double"));
+            }
+            for(String name: histograms.keySet()) {
+                for(String suffix: new String[] {"count", "meanMillis", "p50Millis", "p99Millis", "maxMillis"}) {
+                    attributes.add(attribute(name + "_" + suffix, "double"));
+                }
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Metrics of " + prefix,
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private MBeanAttributeInfo attribute(String name, String type) {
+            return new MBeanAttributeInfo(name, type, name, true, false, false);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.dl4j.models;
+
+import java.util.Properties;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Input size, grid and prior boxes of the YOLO2 object detection model, shared by
+ * training and inference so they cannot drift apart.
+ *
+ * Read from the inputWidth, inputHeight and priorBoxes properties. The grid follows from
+ * the input size, YOLO2 downsamples by 32 in both directions. priorBoxes lists width,height
+ * pairs in grid cells separated by semicolons, e.g. 1.5,1.5;2,2;3,3;3.5,8;4,9.
+ * */
+public class ObjectDetectionGeometry {
+
+    private static Logger log =
+            LoggerFactory.getLogger(ObjectDetectionGeometry.class);
+
+    /** Input pixels per grid cell of YOLO2. */
+    public static final int CELL_SIZE = 32;
+
+    // the original 832x416 setup, tuned for 1920x1048 video
+    private static final int DEFAULT_INPUT_WIDTH = 832;
+    private static final int DEFAULT_INPUT_HEIGHT = 416;
+    private static final String DEFAULT_PRIOR_BOXES = "1.5,1.5;2,2;3,3;3.5,8;4,9";
+
+    private final int inputWidth;
+    private final int inputHeight;
+    private final double[][] priorBoxes;
+
+    public ObjectDetectionGeometry(int inputWidth, int inputHeight, double[][] priorBoxes) {
+        if(inputWidth % CELL_SIZE != 0 || inputHeight % CELL_SIZE != 0) {
+            log.warn("Input " + inputWidth + "x" + inputHeight + " is not a multiple of " +
+                    CELL_SIZE + ", the model may reject it");
+        }
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.priorBoxes = priorBoxes;
+    }
+
+    public static ObjectDetectionGeometry fromProperties(Properties properties) {
+        final String[] pairs =
+                properties.getProperty("priorBoxes", DEFAULT_PRIOR_BOXES).split(";");
+        final double[][] priorBoxes = new double[pairs.length][];
+        for(int i = 0; i < pairs.length; i++) {
+            final String[] pair = pairs[i].split(",");
+            priorBoxes[i] = new double[] {
+                    Double.parseDouble(pair[0].trim()),
+                    Double.parseDouble(pair[1].trim())};
+        }
+
+        return new ObjectDetectionGeometry(
+                Integer.parseInt(properties.getProperty(
+                        "inputWidth", String.valueOf(DEFAULT_INPUT_WIDTH))),
+                Integer.parseInt(properties.getProperty(
+                        "inputHeight", String.valueOf(DEFAULT_INPUT_HEIGHT))),
+                priorBoxes);
+    }
+
+    public int getInputWidth() {
+        return inputWidth;
+    }
+
+    public int getInputHeight() {
+        return inputHeight;
+    }
+
+    public int getGridWidth() {
+        return (inputWidth + CELL_SIZE - 1) / CELL_SIZE;
+    }
+
+    public int getGridHeight() {
+        return (inputHeight + CELL_SIZE - 1) / CELL_SIZE;
+    }
+
+    public int getNumberOfBoundingBoxes() {
+        return priorBoxes.length;
+    }
+
+    public INDArray getPriorBoxes() {
+        return Nd4j.create(priorBoxes);
+    }
+
+    @Override
+    public String toString() {
+        return inputWidth + "x" + inputHeight +
+                ", grid " + getGridWidth() + "x" + getGridHeight() +
+                ", " + priorBoxes.length + " prior boxes";
+    }
+}
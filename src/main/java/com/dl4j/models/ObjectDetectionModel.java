@@ -26,7 +26,6 @@ import org.deeplearning4j.zoo.model.YOLO2;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
-import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.learning.config.Adam;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -94,18 +93,18 @@ public class ObjectDetectionModel {
         final Properties hyperParameters = new Properties();
         hyperParameters.load(new FileInputStream(hyperParametersFile));
 
-        final int numberOfBoundingBoxes = 5;
-        INDArray priorBoxes = Nd4j.create(new double[][] {{1.5, 1.5}, {2, 2}, {3,3}, {3.5, 8}, {4, 9}});
+        final ObjectDetectionGeometry geometry = ObjectDetectionGeometry.fromProperties(hyperParameters);
+        final int numberOfBoundingBoxes = geometry.getNumberOfBoundingBoxes();
+        INDArray priorBoxes = geometry.getPriorBoxes();
 
         final double lambdaNoObj = 0.5;
         final double lambdaCoord = 1.0;
 
-        // TODO: Move to properties file
-        final int imageWidth = 832;
-        final int imageHeight = 416;
+        final int imageWidth = geometry.getInputWidth();
+        final int imageHeight = geometry.getInputHeight();
         final int rgbChannels = 3;
-        final int gridWidth = 26;
-        final int gridHeight = 13;
+        final int gridWidth = geometry.getGridWidth();
+        final int gridHeight = geometry.getGridHeight();
 
         final int batchSize = Integer.parseInt(hyperParameters.getProperty("batchSize"));
         final int epochs = Integer.parseInt(hyperParameters.getProperty("epochs"));
@@ -115,6 +114,7 @@ public class ObjectDetectionModel {
         log.debug("batchSize: " + batchSize);
         log.debug("epochs: " + epochs);
         log.debug("learningRate: " + learningRate);
+        log.debug("geometry: " + geometry);
 
         final ObjectDetectionRecordReader recordReaderTrain =
                 new ObjectDetectionRecordReader(imageHeight, imageWidth, rgbChannels,
@@ -0,0 +1,24 @@
+package com.dl4j.prediction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keep uploaded prediction files in memory, stands in for S3 when testing the sink.
+ * */
+public class InMemoryUploadTarget implements UploadTarget {
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    @Override
+    public void upload(String key, File file) throws IOException {
+        objects.put(key, Files.readAllBytes(file.toPath()));
+    }
+
+    public Map<String, byte[]> getObjects() {
+        return objects;
+    }
+}
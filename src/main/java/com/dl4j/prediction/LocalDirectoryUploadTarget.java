@@ -0,0 +1,26 @@
+package com.dl4j.prediction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Copy prediction files into a local directory, e.g. a mounted share or for offline runs.
+ * */
+public class LocalDirectoryUploadTarget implements UploadTarget {
+
+    private final Path directory;
+
+    public LocalDirectoryUploadTarget(File directory) throws IOException {
+        this.directory = Files.createDirectories(directory.toPath());
+    }
+
+    @Override
+    public void upload(String key, File file) throws IOException {
+        final Path target = directory.resolve(key);
+        Files.createDirectories(target.getParent());
+        Files.copy(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
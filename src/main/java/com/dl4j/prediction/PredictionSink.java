@@ -0,0 +1,212 @@
+package com.dl4j.prediction;
+
+import com.dl4j.metrics.LatencyHistogram;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collect prediction lines in rolling files and upload them in the background.
+ *
+ * Lines go through one buffered UTF-8 writer that stays open. A file is closed and queued for
+ * upload once it grows past maxFileBytes or has been open for rollIntervalMillis.
+ * The uploader thread wakes every uploadIntervalMillis and ships all queued files, so the
+ * caller never waits on the network and every line is uploaded once, instead of
+ * re-uploading the whole file for every detection.
+ * */
+public class PredictionSink implements Closeable {
+
+    private static Logger log =
+            LoggerFactory.getLogger(PredictionSink.class);
+
+    private static final int LINE_SEPARATOR_BYTES = System.lineSeparator().length();
+
+    private final File directory;
+    private final String filePrefix;
+    private final String keyPrefix;
+    private final UploadTarget uploadTarget;
+    private final long maxFileBytes;
+    private final long rollIntervalMillis;
+    private final long uploadIntervalMillis;
+
+    private final BlockingQueue<File> rolledFiles = new LinkedBlockingQueue<>();
+    private final AtomicLong uploadedFiles = new AtomicLong();
+    private final AtomicLong failedUploads = new AtomicLong();
+    private final Thread uploader;
+
+    private BufferedWriter writer;
+    private File currentFile;
+    private long currentBytes;
+    private long openedMillis;
+    private int fileIndex;
+    private volatile boolean closed;
+    private volatile LatencyHistogram uploadLatency;
+
+    /**
+     * @param directory             local directory for the prediction files
+     * @param filePrefix            file name prefix, e.g. "predictions-1545000000000"
+     * @param keyPrefix             prefix put in front of the file name for the upload key
+     * @param uploadTarget          where rolled files are uploaded to
+     * @param maxFileBytes          roll the file once it reaches this size
+     * @param rollIntervalMillis    roll the file once it has been open this long
+     * @param uploadIntervalMillis  how often the uploader ships rolled files
+     * */
+    public PredictionSink(
+            File directory,
+            String filePrefix,
+            String keyPrefix,
+            UploadTarget uploadTarget,
+            long maxFileBytes,
+            long rollIntervalMillis,
+            long uploadIntervalMillis) {
+        this.directory = directory;
+        this.filePrefix = filePrefix;
+        this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+        this.uploadTarget = uploadTarget;
+        this.maxFileBytes = maxFileBytes;
+        this.rollIntervalMillis = rollIntervalMillis;
+        this.uploadIntervalMillis = uploadIntervalMillis;
+
+        this.uploader = new Thread(this::uploadLoop, "prediction-uploader");
+        this.uploader.setDaemon(true);
+        this.uploader.start();
+    }
+
+    /**
+     * Append one prediction line. Only touches the write buffer in the common case.
+     * */
+    public synchronized void append(String line) throws IOException {
+        if(closed) {
+            throw new IOException("Prediction sink is closed");
+        }
+        if(writer == null) {
+            open();
+        }
+        writer.write(line);
+        writer.newLine();
+        currentBytes += line.getBytes(StandardCharsets.UTF_8).length + LINE_SEPARATOR_BYTES;
+
+        rollIfDue();
+    }
+
+    private void open() throws IOException {
+        currentFile = new File(directory,
+                filePrefix + "-" + String.format("%05d", fileIndex++) + ".csv");
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(currentFile, true), StandardCharsets.UTF_8));
+        currentBytes = 0;
+        openedMillis = System.currentTimeMillis();
+    }
+
+    private synchronized void rollIfDue() throws IOException {
+        if(writer != null && (currentBytes >= maxFileBytes ||
+                System.currentTimeMillis() - openedMillis >= rollIntervalMillis)) {
+            roll();
+        }
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        writer = null;
+        rolledFiles.add(currentFile);
+    }
+
+    private void uploadLoop() {
+        final List<File> batch = new ArrayList<>();
+        while(!closed || !rolledFiles.isEmpty()) {
+            try {
+                final File first = rolledFiles.poll(uploadIntervalMillis, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    rollIfDue();
+                    continue;
+                }
+                batch.add(first);
+                rolledFiles.drainTo(batch);
+
+                for(File file: batch) {
+                    upload(file);
+                }
+                batch.clear();
+            } catch(InterruptedException ie) {
+                if(closed) {
+                    rolledFiles.drainTo(batch);
+                    for(File file: batch) {
+                        upload(file);
+                    }
+                    return;
+                }
+            } catch(IOException ioe) {
+                log.error("Error rolling prediction file", ioe);
+            }
+        }
+    }
+
+    private void upload(File file) {
+        final long start = System.nanoTime();
+        try {
+            uploadTarget.upload(keyPrefix + file.getName(), file);
+            uploadedFiles.incrementAndGet();
+            if(uploadLatency != null) {
+                uploadLatency.recordSince(start);
+            }
+            log.debug("Uploaded prediction file " + file.getName());
+        } catch(Exception e) {
+            failedUploads.incrementAndGet();
+            log.error("Error uploading prediction file " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Roll the current file and wait for all pending uploads to finish.
+     * */
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            if(writer != null) {
+                roll();
+            }
+            closed = true;
+        }
+        try {
+            uploader.join();
+        } catch(InterruptedException ie) {
+            uploader.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record how long every successful upload takes.
+     * */
+    public void setUploadLatency(LatencyHistogram uploadLatency) {
+        this.uploadLatency = uploadLatency;
+    }
+
+    public long getUploadedFiles() {
+        return uploadedFiles.get();
+    }
+
+    public long getFailedUploads() {
+        return failedUploads.get();
+    }
+
+    public int getPendingUploads() {
+        return rolledFiles.size();
+    }
+}
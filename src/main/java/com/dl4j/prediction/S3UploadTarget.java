@@ -0,0 +1,27 @@
+package com.dl4j.prediction;
+
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.File;
+
+/**
+ * Upload prediction files to an S3 bucket.
+ * */
+public class S3UploadTarget implements UploadTarget {
+
+    private final AmazonS3 s3Client;
+    private final String s3BucketName;
+
+    public S3UploadTarget(AmazonS3 s3Client, String s3BucketName) {
+        this.s3Client = s3Client;
+        this.s3BucketName = s3BucketName;
+
+        if(!s3Client.doesBucketExistV2(s3BucketName)) {
+            s3Client.createBucket(s3BucketName);
+        }
+    }
+
+    @Override
+    public void upload(String key, File file) {
+        s3Client.putObject(s3BucketName, key, file);
+    }
+}
@@ -0,0 +1,16 @@
+package com.dl4j.prediction;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where the {@link PredictionSink} ships its rolled prediction files to.
+ * */
+public interface UploadTarget {
+
+    /**
+     * @param key   object key, the file name prefixed with the configured key prefix
+     * @param file  a closed prediction file
+     * */
+    void upload(String key, File file) throws IOException;
+}
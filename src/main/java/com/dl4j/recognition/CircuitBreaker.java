@@ -0,0 +1,81 @@
+package com.dl4j.recognition;
+
+/**
+ * Stop calling a backend that keeps failing, and try it again after a while.
+ *
+ * After failureThreshold failures in a row the breaker opens and every request is
+ * refused for openMillis. Then one trial request is let through, half open: its success
+ * closes the breaker again, its failure opens it for another openMillis. Thread safe.
+ * */
+public class CircuitBreaker {
+
+    public enum State {
+        /** Requests go through. */
+        CLOSED,
+        /** Requests are refused. */
+        OPEN,
+        /** One trial request is on its way. */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedMillis;
+    private long openings;
+
+    /**
+     * @param failureThreshold  failures in a row that open the breaker
+     * @param openMillis        how long requests are refused before the next trial
+     * */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return  true if a request may be made now, its outcome must then be recorded
+     * */
+    public synchronized boolean allowRequest() {
+        switch(state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if(System.currentTimeMillis() - openedMillis >= openMillis) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // the trial request has not come back yet
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        if(state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openedMillis = System.currentTimeMillis();
+            openings++;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return  how often the breaker opened so far
+     * */
+    public synchronized long getOpenings() {
+        return openings;
+    }
+}
@@ -0,0 +1,63 @@
+package com.dl4j.recognition;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.bytedeco.javacpp.opencv_core.RectVector;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.opencv_objdetect.CascadeClassifier;
+
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.equalizeHist;
+
+/**
+ * Find faces with an OpenCV cascade classifier, e.g. the haarcascade_frontalface_default.xml
+ * or lbpcascade_frontalface.xml that come with OpenCV. The LBP cascade is several times faster.
+ * Thread safe, detections are serialized.
+ * */
+public class FaceDetector {
+
+    private final CascadeClassifier classifier;
+    private final Size minSize;
+
+    private final Mat gray = new Mat();
+
+    /**
+     * @param cascadeFile   cascade classifier XML file
+     * @param minFaceSize   smallest face looked for, in pixels
+     * */
+    public FaceDetector(File cascadeFile, int minFaceSize) throws IOException {
+        this.classifier = new CascadeClassifier();
+        if(!classifier.load(cascadeFile.getAbsolutePath())) {
+            throw new IOException("Cannot load cascade classifier " + cascadeFile);
+        }
+        this.minSize = new Size(minFaceSize, minFaceSize);
+    }
+
+    /**
+     * @param image BGR image
+     * @return  the faces found, largest first
+     * */
+    public synchronized List<Rect> detect(Mat image) {
+        if(image.channels() == 1) {
+            equalizeHist(image, gray);
+        } else {
+            cvtColor(image, gray, COLOR_BGR2GRAY);
+            equalizeHist(gray, gray);
+        }
+
+        final RectVector found = new RectVector();
+        classifier.detectMultiScale(gray, found, 1.1, 3, 0, minSize, new Size());
+
+        final List<Rect> faces = new ArrayList<>();
+        for(long i = 0; i < found.size(); i++) {
+            faces.add(new Rect(found.get(i)));
+        }
+        faces.sort((a, b) -> Integer.compare(b.area(), a.area()));
+        return faces;
+    }
+}
@@ -0,0 +1,62 @@
+package com.dl4j.recognition;
+
+import com.dl4j.inference.ImagePreprocessor;
+import java.util.List;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Turn face crops into L2 normalized embeddings with a FaceNet style network, such as
+ * a trained {@link org.deeplearning4j.zoo.model.FaceNetNN4Small2}, whose "embeddings"
+ * vertex is read instead of the classification output. The zoo has no pretrained
+ * weights for it, restore a trained graph with ModelSerializer.
+ *
+ * Thread safe, a ComputationGraph must not run two passes at the same time.
+ * */
+public class FaceEmbedder {
+
+    public static final String EMBEDDINGS_VERTEX = "embeddings";
+
+    private final ComputationGraph model;
+    private final ImagePreprocessor imagePreprocessor;
+    private final int dimension;
+
+    /**
+     * @param width     network input width, 96 for FaceNetNN4Small2
+     * @param height    network input height, 96 for FaceNetNN4Small2
+     * */
+    public FaceEmbedder(ComputationGraph model, int width, int height) {
+        this.model = model;
+        this.imagePreprocessor = new ImagePreprocessor(width, height, 1 / 255.0, true, 1);
+        this.dimension = (int) embed(Nd4j.zeros(1, 3, height, width)).size(1);
+    }
+
+    /**
+     * @param faces     BGR face crops of any size
+     * @return  one embedding of unit length per face
+     * */
+    public synchronized float[][] embed(List<Mat> faces) throws InterruptedException {
+        final float[][] embeddings = new float[faces.size()][];
+        for(int i = 0; i < faces.size(); i++) {
+            final INDArray input = imagePreprocessor.process(faces.get(i));
+            try {
+                embeddings[i] = embed(input).toFloatVector();
+            } finally {
+                imagePreprocessor.release(input);
+            }
+        }
+        return embeddings;
+    }
+
+    private INDArray embed(INDArray input) {
+        final INDArray embeddings = model.feedForward(input, false).get(EMBEDDINGS_VERTEX);
+        // The "embeddings" vertex normalizes already, make sure for other graphs
+        return embeddings.div(embeddings.norm2Number().doubleValue() + 1e-12);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+}
@@ -0,0 +1,63 @@
+package com.dl4j.recognition;
+
+import java.util.List;
+
+/**
+ * Labelled face embeddings of unit length, searched by cosine similarity.
+ * */
+public interface FaceIndex {
+
+    /**
+     * @param label     who the face belongs to, several faces may share a label
+     * @param embedding of unit length and {@link #getDimension()} long
+     * */
+    void add(String label, float[] embedding);
+
+    /**
+     * @return  up to k of the most similar faces, most similar first
+     * */
+    List<Neighbor> search(float[] embedding, int k);
+
+    int size();
+
+    int getDimension();
+
+    /**
+     * One face found by a search.
+     * */
+    class Neighbor {
+
+        private final int id;
+        private final String label;
+        private final float similarity;
+
+        public Neighbor(int id, String label, float similarity) {
+            this.id = id;
+            this.label = label;
+            this.similarity = similarity;
+        }
+
+        /**
+         * @return  position of the face in the order it was added
+         * */
+        public int getId() {
+            return id;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return  cosine similarity from -1 to 1
+         * */
+        public float getSimilarity() {
+            return similarity;
+        }
+
+        @Override
+        public String toString() {
+            return label + " (" + similarity + ")";
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.dl4j.recognition;
+
+import com.amazonaws.services.rekognition.model.FaceMatch;
+import com.amazonaws.services.rekognition.model.FaceRecord;
+import java.util.List;
+
+/**
+ * The remote face recognition calls, made blocking by the threads of a
+ * {@link RecognitionService}, which adds the timeouts, retries and limits.
+ * */
+public interface FaceRecognitionBackend {
+
+    /**
+     * Add the faces found in an image to a collection.
+     * @param image     JPEG or PNG bytes
+     * @return  the indexed faces with their ids and bounding boxes
+     * */
+    List<FaceRecord> indexFaces(String collectionId, byte[] image) throws Exception;
+
+    /**
+     * @param faceId        a face of the collection
+     * @param threshold     lowest similarity in percent of a match
+     * @return  the best matches of the face in the collection, without the face itself
+     * */
+    List<FaceMatch> searchFaces(String collectionId, String faceId, float threshold) throws Exception;
+
+    void deleteFaces(String collectionId, List<String> faceIds) throws Exception;
+}
@@ -0,0 +1,231 @@
+package com.dl4j.recognition;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Brute force search over all faces, exact and fast enough for galleries up to some
+ * hundred thousand faces.
+ *
+ * The embeddings are kept back to back in one float array, so a search is a single
+ * pass of dot products over contiguous memory, a loop the JIT unrolls and vectorizes.
+ * The index is saved to and loaded from a memory-mapped file, see {@link #save(Path)}.
+ * Thread safe, searches run in parallel with each other but not with add().
+ * */
+public class FlatFaceIndex implements FaceIndex {
+
+    private static final int MAGIC = 0x46414345; // "FACE"
+    private static final int VERSION = 1;
+
+    private final int dimension;
+    private final List<String> labels = new ArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private float[] embeddings;
+
+    public FlatFaceIndex(int dimension) {
+        this(dimension, 1024);
+    }
+
+    /**
+     * @param capacity  faces room is made for up front, more are added by doubling
+     * */
+    public FlatFaceIndex(int dimension, int capacity) {
+        this.dimension = dimension;
+        this.embeddings = new float[Math.max(1, capacity) * dimension];
+    }
+
+    @Override
+    public void add(String label, float[] embedding) {
+        if(embedding.length != dimension) {
+            throw new IllegalArgumentException(
+                    "Embedding of length " + embedding.length + ", the index holds " + dimension);
+        }
+        lock.writeLock().lock();
+        try {
+            final int offset = labels.size() * dimension;
+            if(offset + dimension > embeddings.length) {
+                embeddings = Arrays.copyOf(embeddings, embeddings.length * 2);
+            }
+            System.arraycopy(embedding, 0, embeddings, offset, dimension);
+            labels.add(label);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Neighbor> search(float[] embedding, int k) {
+        lock.readLock().lock();
+        try {
+            final TopK topK = new TopK(k);
+            for(int id = 0; id < labels.size(); id++) {
+                topK.offer(id, similarity(embedding, id));
+            }
+            return topK.toNeighbors(labels);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Search only the given faces, for {@link IvfFaceIndex}.
+     * */
+    List<Neighbor> search(float[] embedding, int k, int[][] idLists, int[] listSizes) {
+        lock.readLock().lock();
+        try {
+            final TopK topK = new TopK(k);
+            for(int list = 0; list < idLists.length; list++) {
+                final int[] ids = idLists[list];
+                for(int i = 0; i < listSizes[list]; i++) {
+                    topK.offer(ids[i], similarity(embedding, ids[i]));
+                }
+            }
+            return topK.toNeighbors(labels);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return  the dot product of embedding and face id, their cosine similarity
+     * */
+    float similarity(float[] embedding, int id) {
+        final float[] embeddings = this.embeddings;
+        final int offset = id * dimension;
+        float dot = 0;
+        for(int i = 0; i < dimension; i++) {
+            dot += embedding[i] * embeddings[offset + i];
+        }
+        return dot;
+    }
+
+    /**
+     * @return  a copy of the embedding of face id
+     * */
+    float[] get(int id) {
+        lock.readLock().lock();
+        try {
+            return Arrays.copyOfRange(embeddings, id * dimension, (id + 1) * dimension);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return labels.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Write the index through a memory-mapped file: a header, the labels and then the
+     * embeddings as little endian floats, which load() maps and copies in one bulk get.
+     * */
+    public void save(Path path) throws IOException {
+        lock.readLock().lock();
+        try {
+            final List<byte[]> labelBytes = new ArrayList<>();
+            long size = 4 * Integer.BYTES;
+            for(String label: labels) {
+                final byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+                labelBytes.add(bytes);
+                size += Integer.BYTES + bytes.length;
+            }
+            size += (long) labels.size() * dimension * Float.BYTES;
+
+            Files.deleteIfExists(path);
+            try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+                FileChannel channel = file.getChannel()) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(labels.size());
+                for(byte[] bytes: labelBytes) {
+                    buffer.putInt(bytes.length).put(bytes);
+                }
+                buffer.asFloatBuffer().put(embeddings, 0, labels.size() * dimension);
+                buffer.force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public static FlatFaceIndex load(Path path) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+            FileChannel channel = file.getChannel()) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(path + " is not a face index");
+            }
+            final int dimension = buffer.getInt();
+            final int count = buffer.getInt();
+
+            final FlatFaceIndex index = new FlatFaceIndex(dimension, count);
+            for(int i = 0; i < count; i++) {
+                final byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                index.labels.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+                    .get(index.embeddings, 0, count * dimension);
+            return index;
+        }
+    }
+
+    /**
+     * The k best scores seen, kept sorted in small arrays.
+     * */
+    private static class TopK {
+
+        private final int[] ids;
+        private final float[] scores;
+        private int size;
+
+        TopK(int k) {
+            this.ids = new int[k];
+            this.scores = new float[k];
+        }
+
+        void offer(int id, float score) {
+            if(size == ids.length && (size == 0 || score <= scores[size - 1])) {
+                return;
+            }
+            int i = size < ids.length ? size++ : size - 1;
+            for(; i > 0 && scores[i - 1] < score; i--) {
+                ids[i] = ids[i - 1];
+                scores[i] = scores[i - 1];
+            }
+            ids[i] = id;
+            scores[i] = score;
+        }
+
+        List<Neighbor> toNeighbors(List<String> labels) {
+            final List<Neighbor> neighbors = new ArrayList<>(size);
+            for(int i = 0; i < size; i++) {
+                neighbors.add(new Neighbor(ids[i], labels.get(ids[i]), scores[i]));
+            }
+            return neighbors;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.dl4j.recognition;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted file index over a {@link FlatFaceIndex}, for galleries too large to scan.
+ *
+ * The faces are clustered around listCount centroids with k-means. A search compares
+ * the query with the centroids first and then only scans the faces of the probes
+ * nearest clusters, so it reads about probes / listCount of the gallery. The result is
+ * approximate, a face in a cluster that was not probed is missed, more probes trade
+ * speed for recall. The embeddings stay in the flat index, which is what gets saved,
+ * the clusters are trained again after loading.
+ * */
+public class IvfFaceIndex implements FaceIndex {
+
+    private static final int TRAINING_ITERATIONS = 10;
+
+    private final FlatFaceIndex faces;
+    private final int probes;
+    private final float[][] centroids;
+    private final int[][] lists;
+    private final int[] listSizes;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param faces     a gallery with at least one face, used for training and searching
+     * @param listCount clusters, about the square root of the gallery size works well
+     * @param probes    clusters scanned per search
+     * */
+    public IvfFaceIndex(FlatFaceIndex faces, int listCount, int probes) {
+        final int size = faces.size();
+        if(size == 0) {
+            throw new IllegalArgumentException("An IVF index is trained on the faces of a gallery, it is empty");
+        }
+        this.faces = faces;
+        this.centroids = new float[Math.min(listCount, size)][];
+        this.probes = Math.min(probes, centroids.length);
+        this.lists = new int[centroids.length][];
+        this.listSizes = new int[centroids.length];
+
+        // Spherical k-means, seeded with faces spread over the gallery
+        for(int c = 0; c < centroids.length; c++) {
+            centroids[c] = faces.get((int) ((long) c * size / centroids.length));
+        }
+        final int[] assignments = new int[size];
+        for(int iteration = 0; iteration < TRAINING_ITERATIONS; iteration++) {
+            final float[][] sums = new float[centroids.length][faces.getDimension()];
+            for(int id = 0; id < size; id++) {
+                final float[] embedding = faces.get(id);
+                assignments[id] = nearestCentroid(embedding);
+                final float[] sum = sums[assignments[id]];
+                for(int i = 0; i < sum.length; i++) {
+                    sum[i] += embedding[i];
+                }
+            }
+            for(int c = 0; c < centroids.length; c++) {
+                // A cluster that lost all its faces keeps its centroid
+                if(normalize(sums[c])) {
+                    centroids[c] = sums[c];
+                }
+            }
+        }
+
+        for(int c = 0; c < centroids.length; c++) {
+            lists[c] = new int[16];
+        }
+        for(int id = 0; id < size; id++) {
+            append(nearestCentroid(faces.get(id)), id);
+        }
+    }
+
+    @Override
+    public void add(String label, float[] embedding) {
+        lock.writeLock().lock();
+        try {
+            faces.add(label, embedding);
+            append(nearestCentroid(embedding), faces.size() - 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Neighbor> search(float[] embedding, int k) {
+        // The nearest clusters, best first
+        final int[] nearest = new int[probes];
+        final float[] nearestScores = new float[probes];
+        Arrays.fill(nearestScores, Float.NEGATIVE_INFINITY);
+        for(int c = 0; c < centroids.length; c++) {
+            final float score = dot(embedding, centroids[c]);
+            int i = probes - 1;
+            if(score <= nearestScores[i]) {
+                continue;
+            }
+            for(; i > 0 && nearestScores[i - 1] < score; i--) {
+                nearest[i] = nearest[i - 1];
+                nearestScores[i] = nearestScores[i - 1];
+            }
+            nearest[i] = c;
+            nearestScores[i] = score;
+        }
+
+        lock.readLock().lock();
+        try {
+            final int[][] probedLists = new int[probes][];
+            final int[] probedSizes = new int[probes];
+            for(int i = 0; i < probes; i++) {
+                probedLists[i] = lists[nearest[i]];
+                probedSizes[i] = listSizes[nearest[i]];
+            }
+            return faces.search(embedding, k, probedLists, probedSizes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void append(int list, int id) {
+        if(listSizes[list] == lists[list].length) {
+            lists[list] = Arrays.copyOf(lists[list], lists[list].length * 2);
+        }
+        lists[list][listSizes[list]++] = id;
+    }
+
+    private int nearestCentroid(float[] embedding) {
+        int nearest = 0;
+        float best = Float.NEGATIVE_INFINITY;
+        for(int c = 0; c < centroids.length; c++) {
+            final float score = dot(embedding, centroids[c]);
+            if(score > best) {
+                best = score;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float dot = 0;
+        for(int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    private static boolean normalize(float[] vector) {
+        final double norm = Math.sqrt(dot(vector, vector));
+        if(norm == 0) {
+            return false;
+        }
+        for(int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return faces.size();
+    }
+
+    @Override
+    public int getDimension() {
+        return faces.getDimension();
+    }
+
+    public FlatFaceIndex getFaces() {
+        return faces;
+    }
+}
@@ -0,0 +1,129 @@
+package com.dl4j.recognition;
+
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.Face;
+import com.amazonaws.services.rekognition.model.FaceMatch;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Rect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
+
+/**
+ * Face matching in process: an OpenCV {@link FaceDetector}, a {@link FaceEmbedder} and a
+ * {@link FaceIndex} of known faces. {@link #identify(Mat, float)} does in one call on the
+ * decoded frame what takes Rekognition an indexFaces, a searchFaces per face and a
+ * deleteFaces, without encoding the frame or any collection bookkeeping.
+ *
+ * The gallery is filled with {@link #enroll(String, Mat)}. Matches are reported as
+ * Rekognition FaceMatches, the similarity in percent is the cosine similarity times 100.
+ * */
+public class LocalFaceRecognizer {
+
+    private static Logger log =
+            LoggerFactory.getLogger(LocalFaceRecognizer.class);
+
+    private final FaceDetector faceDetector;
+    private final FaceEmbedder faceEmbedder;
+    private final FaceIndex gallery;
+
+    public LocalFaceRecognizer(FaceDetector faceDetector, FaceEmbedder faceEmbedder, FaceIndex gallery) {
+        if(gallery.getDimension() != faceEmbedder.getDimension()) {
+            throw new IllegalArgumentException("Gallery of " + gallery.getDimension() +
+                    " dimensions for embeddings of " + faceEmbedder.getDimension());
+        }
+        this.faceDetector = faceDetector;
+        this.faceEmbedder = faceEmbedder;
+        this.gallery = gallery;
+    }
+
+    /**
+     * Find the faces of an image in the gallery.
+     * @param threshold lowest similarity in percent of a match
+     * @return  the best match of every face found, with the face position in its bounding box
+     * */
+    public List<FaceMatch> identify(Mat image, float threshold) throws InterruptedException {
+        final List<Rect> faces = faceDetector.detect(image);
+        final float[][] embeddings = embed(image, faces);
+        final List<FaceMatch> faceMatches = new ArrayList<>();
+        for(int i = 0; i < faces.size(); i++) {
+            for(FaceMatch faceMatch: match(embeddings[i], threshold)) {
+                faceMatch.getFace().setBoundingBox(boundingBox(faces.get(i), image));
+                faceMatches.add(faceMatch);
+            }
+        }
+        return faceMatches;
+    }
+
+    /**
+     * Add the largest face of image to the gallery.
+     * @return  false if no face was found
+     * */
+    public boolean enroll(String label, Mat image) throws InterruptedException {
+        final List<Rect> faces = faceDetector.detect(image);
+        if(faces.isEmpty()) {
+            return false;
+        }
+        gallery.add(label, embed(image, faces.subList(0, 1))[0]);
+        return true;
+    }
+
+    /**
+     * Enroll every image of a directory, labelled with its file name without extension.
+     * @return  faces added
+     * */
+    public int enrollDirectory(File directory) throws InterruptedException {
+        int enrolled = 0;
+        final File[] files = directory.listFiles((dir, name) -> name.matches("(?i).*\\.(jpe?g|png|bmp)"));
+        for(File file: files == null ? new File[0] : files) {
+            final String name = file.getName();
+            final Mat image = imread(file.getAbsolutePath());
+            if(!image.empty() && enroll(name.substring(0, name.lastIndexOf('.')), image)) {
+                enrolled++;
+            } else {
+                log.debug("No face found in " + file);
+            }
+        }
+        return enrolled;
+    }
+
+    private List<FaceMatch> match(float[] embedding, float threshold) {
+        final List<FaceIndex.Neighbor> neighbors = gallery.search(embedding, 1);
+        if(neighbors.isEmpty() || neighbors.get(0).getSimilarity() * 100 < threshold) {
+            return Collections.emptyList();
+        }
+        final FaceIndex.Neighbor neighbor = neighbors.get(0);
+        final float similarity = neighbor.getSimilarity() * 100;
+        return Collections.singletonList(new FaceMatch()
+                .withSimilarity(similarity)
+                .withFace(new Face()
+                        .withFaceId(String.valueOf(neighbor.getId()))
+                        .withExternalImageId(neighbor.getLabel())
+                        .withConfidence(similarity)));
+    }
+
+    private float[][] embed(Mat image, List<Rect> faces) throws InterruptedException {
+        final List<Mat> crops = new ArrayList<>();
+        for(Rect face: faces) {
+            crops.add(new Mat(image, face));
+        }
+        return faceEmbedder.embed(crops);
+    }
+
+    private static BoundingBox boundingBox(Rect face, Mat image) {
+        return new BoundingBox()
+                .withLeft((float) face.x() / image.cols())
+                .withTop((float) face.y() / image.rows())
+                .withWidth((float) face.width() / image.cols())
+                .withHeight((float) face.height() / image.rows());
+    }
+
+    public FaceIndex getGallery() {
+        return gallery;
+    }
+}
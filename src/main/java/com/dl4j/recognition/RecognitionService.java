@@ -0,0 +1,350 @@
+package com.dl4j.recognition;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.rekognition.model.FaceMatch;
+import com.amazonaws.services.rekognition.model.FaceRecord;
+import com.amazonaws.services.rekognition.model.TextDetection;
+import com.dl4j.metrics.LatencyHistogram;
+import com.dl4j.metrics.MetricsRegistry;
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking recognition calls on top of a blocking {@link FaceRecognitionBackend} and
+ * {@link TextRecognitionBackend}, or of any blocking call given to {@link #submit}.
+ *
+ * Every call returns a CompletableFuture right away and runs on a thread of the service:
+ * <ul>
+ *     <li>at most maxInFlight calls are outstanding, further ones fail at once with a
+ *     RejectedExecutionException instead of queueing up behind a slow backend,</li>
+ *     <li>a call with the same key as one in flight, e.g. the same image, gets the
+ *     future of that call instead of a call of its own,</li>
+ *     <li>every attempt is given up after timeoutMillis,</li>
+ *     <li>failed attempts are retried up to maxAttempts with exponential backoff and
+ *     jitter, except for requests the service refused as invalid,</li>
+ *     <li>a {@link CircuitBreaker} refuses calls while the backend keeps failing.</li>
+ * </ul>
+ * */
+public class RecognitionService implements Closeable {
+
+    private static Logger log =
+            LoggerFactory.getLogger(RecognitionService.class);
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_BASE_MILLIS = 200;
+
+    private static final long MAX_RETRY_MILLIS = 10000;
+
+    private final FaceRecognitionBackend faceBackend;
+    private final TextRecognitionBackend textBackend;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+    private final int maxAttempts;
+    private final long retryBaseMillis;
+    private final CircuitBreaker circuitBreaker;
+
+    private final Semaphore permits;
+    private final Map<String, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed;
+
+    private final LongAdder calls;
+    private final LongAdder coalesced;
+    private final LongAdder rejected;
+    private final LongAdder timeouts;
+    private final LongAdder retries;
+    private final LongAdder failures;
+    private final LatencyHistogram callLatency;
+
+    /**
+     * @param faceBackend   for the face calls, null if they are not used
+     * @param textBackend   for detectText, null if it is not used
+     * */
+    public RecognitionService(
+            FaceRecognitionBackend faceBackend,
+            TextRecognitionBackend textBackend,
+            MetricsRegistry metrics) {
+        this(faceBackend,
+                textBackend,
+                DEFAULT_MAX_IN_FLIGHT,
+                DEFAULT_TIMEOUT_MILLIS,
+                DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_RETRY_BASE_MILLIS,
+                new CircuitBreaker(5, 30000),
+                metrics);
+    }
+
+    /**
+     * @param faceBackend       for the face calls, null if they are not used
+     * @param textBackend       for detectText, null if it is not used
+     * @param maxInFlight       calls outstanding at the same time, retries included
+     * @param timeoutMillis     time an attempt may take
+     * @param maxAttempts       attempts of a call, 1 for no retries
+     * @param retryBaseMillis   backoff before the first retry, doubled for every further one
+     * @param metrics           registry for the recognition_* metrics of the service
+     * */
+    public RecognitionService(
+            FaceRecognitionBackend faceBackend,
+            TextRecognitionBackend textBackend,
+            int maxInFlight,
+            long timeoutMillis,
+            int maxAttempts,
+            long retryBaseMillis,
+            CircuitBreaker circuitBreaker,
+            MetricsRegistry metrics) {
+        this.faceBackend = faceBackend;
+        this.textBackend = textBackend;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.retryBaseMillis = retryBaseMillis;
+        this.circuitBreaker = circuitBreaker;
+        this.permits = new Semaphore(maxInFlight);
+
+        // Not a fixed pool, an attempt that timed out may still hold its thread in a socket read
+        this.workers = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "recognition-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "recognition-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.calls = metrics.counter("recognition_calls");
+        this.coalesced = metrics.counter("recognition_coalesced");
+        this.rejected = metrics.counter("recognition_rejected");
+        this.timeouts = metrics.counter("recognition_timeouts");
+        this.retries = metrics.counter("recognition_retries");
+        this.failures = metrics.counter("recognition_failures");
+        this.callLatency = metrics.histogram("recognition_call");
+        metrics.gauge("recognition_in_flight", () -> maxInFlight - permits.availablePermits());
+        metrics.gauge("recognition_circuit_open",
+                () -> circuitBreaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1);
+        metrics.gauge("recognition_circuit_openings", circuitBreaker::getOpenings);
+    }
+
+    public CompletableFuture<List<FaceRecord>> indexFaces(String collectionId, byte[] image) {
+        if(faceBackend == null) {
+            return notConfigured("face");
+        }
+        return submit("indexFaces:" + collectionId + ":" + digest(image),
+                () -> faceBackend.indexFaces(collectionId, image));
+    }
+
+    public CompletableFuture<List<FaceMatch>> searchFaces(String collectionId, String faceId, float threshold) {
+        if(faceBackend == null) {
+            return notConfigured("face");
+        }
+        return submit("searchFaces:" + collectionId + ":" + faceId + ":" + threshold,
+                () -> faceBackend.searchFaces(collectionId, faceId, threshold));
+    }
+
+    public CompletableFuture<Void> deleteFaces(String collectionId, List<String> faceIds) {
+        if(faceBackend == null) {
+            return notConfigured("face");
+        }
+        return submit(null, () -> {
+            faceBackend.deleteFaces(collectionId, faceIds);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<TextDetection>> detectText(byte[] image) {
+        if(textBackend == null) {
+            return notConfigured("text");
+        }
+        return submit("detectText:" + digest(image), () -> textBackend.detectText(image));
+    }
+
+    private static <T> CompletableFuture<T> notConfigured(String kind) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(new IllegalStateException(
+                "recognition service has no " + kind + " recognition backend"));
+        return result;
+    }
+
+    /**
+     * Run call on a thread of the service with its limits, timeout and retries.
+     * @param key   calls with the same key share one call while it is in flight, null for none
+     * */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(String key, Callable<T> call) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        if(key != null) {
+            final CompletableFuture<?> existing = inFlight.putIfAbsent(key, result);
+            if(existing != null) {
+                coalesced.increment();
+                return (CompletableFuture<T>) existing;
+            }
+            result.whenComplete((value, throwable) -> inFlight.remove(key, result));
+        }
+
+        if(closed) {
+            return reject(result, "recognition service closed");
+        }
+        if(!permits.tryAcquire()) {
+            return reject(result, maxInFlight + " recognition calls in flight");
+        }
+        if(!circuitBreaker.allowRequest()) {
+            permits.release();
+            return reject(result, "recognition circuit breaker open");
+        }
+
+        pending.add(result);
+        result.whenComplete((value, throwable) -> {
+            pending.remove(result);
+            permits.release();
+        });
+        attempt(call, result, 1);
+        return result;
+    }
+
+    private <T> CompletableFuture<T> reject(CompletableFuture<T> result, String reason) {
+        rejected.increment();
+        result.completeExceptionally(new RejectedExecutionException(reason));
+        return result;
+    }
+
+    private <T> void attempt(Callable<T> call, CompletableFuture<T> result, int attempt) {
+        if(result.isDone()) {
+            return;
+        }
+        calls.increment();
+
+        // Either the call or its timeout finishes the attempt, whichever comes first
+        final AtomicBoolean finished = new AtomicBoolean();
+        final long start = System.nanoTime();
+        final Future<?> task;
+        try {
+            task = workers.submit(() -> {
+                try {
+                    final T value = call.call();
+                    if(finished.compareAndSet(false, true)) {
+                        callLatency.record(System.nanoTime() - start);
+                        circuitBreaker.recordSuccess();
+                        result.complete(value);
+                    }
+                } catch(Throwable throwable) {
+                    if(finished.compareAndSet(false, true)) {
+                        callLatency.record(System.nanoTime() - start);
+                        failed(call, result, attempt, throwable);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            result.completeExceptionally(ree);
+            return;
+        }
+
+        final ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+            if(finished.compareAndSet(false, true)) {
+                timeouts.increment();
+                task.cancel(true);
+                failed(call, result, attempt,
+                        new TimeoutException("recognition call took more than " + timeoutMillis + " ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        result.whenComplete((value, throwable) -> timeout.cancel(false));
+    }
+
+    private <T> void failed(Callable<T> call, CompletableFuture<T> result, int attempt, Throwable throwable) {
+        if(!isRetryable(throwable)) {
+            // The backend answered, it is the request that is wrong
+            circuitBreaker.recordSuccess();
+            failures.increment();
+            result.completeExceptionally(throwable);
+            return;
+        }
+
+        circuitBreaker.recordFailure();
+        if(attempt >= maxAttempts || closed || circuitBreaker.getState() != CircuitBreaker.State.CLOSED) {
+            failures.increment();
+            result.completeExceptionally(throwable);
+            return;
+        }
+
+        // Equal jitter: half of the backoff for sure, the other half at random
+        final long backoff = Math.min(MAX_RETRY_MILLIS, retryBaseMillis << (attempt - 1));
+        final long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        log.debug("Retrying recognition call in " + delay + " ms after " + throwable);
+        retries.increment();
+        try {
+            scheduler.schedule(() -> attempt(call, result, attempt + 1), delay, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException ree) {
+            result.completeExceptionally(throwable);
+        }
+    }
+
+    private static boolean isRetryable(Throwable throwable) {
+        if(throwable instanceof AmazonServiceException) {
+            final AmazonServiceException ase = (AmazonServiceException) throwable;
+            final String errorCode = String.valueOf(ase.getErrorCode());
+            return ase.getStatusCode() >= 500 || ase.getStatusCode() == 429 ||
+                    errorCode.contains("Throttl") || errorCode.contains("ThroughputExceeded");
+        }
+        return !(throwable instanceof IllegalArgumentException ||
+                throwable instanceof UnsupportedOperationException);
+    }
+
+    private static String digest(byte[] bytes) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch(NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return  calls outstanding, retries included
+     * */
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * Fail the outstanding calls and stop the threads of the service.
+     * */
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        for(CompletableFuture<?> result: pending) {
+            result.completeExceptionally(new RejectedExecutionException("recognition service closed"));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.dl4j.recognition;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
+import com.amazonaws.services.rekognition.model.DeleteFacesRequest;
+import com.amazonaws.services.rekognition.model.DetectTextRequest;
+import com.amazonaws.services.rekognition.model.FaceMatch;
+import com.amazonaws.services.rekognition.model.FaceRecord;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.IndexFacesRequest;
+import com.amazonaws.services.rekognition.model.SearchFacesRequest;
+import com.amazonaws.services.rekognition.model.TextDetection;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Recognition with Amazon Rekognition.
+ * */
+public class RekognitionBackend implements FaceRecognitionBackend, TextRecognitionBackend {
+
+    private final AmazonRekognition rekognition;
+
+    public RekognitionBackend(AmazonRekognition rekognition) {
+        this.rekognition = rekognition;
+    }
+
+    /**
+     * A client with the profile credentials. The SDK does not retry, the
+     * {@link RecognitionService} does, with jitter and a circuit breaker.
+     * @param timeoutMillis     socket and request timeout of a single call
+     * */
+    public static RekognitionBackend create(Regions region, int timeoutMillis) {
+        return new RekognitionBackend(AmazonRekognitionClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(
+                        new ProfileCredentialsProvider().getCredentials()))
+                .withRegion(region)
+                .withClientConfiguration(new ClientConfiguration()
+                        .withMaxErrorRetry(0)
+                        .withConnectionTimeout(timeoutMillis)
+                        .withSocketTimeout(timeoutMillis)
+                        .withRequestTimeout(timeoutMillis))
+                .build());
+    }
+
+    @Override
+    public List<FaceRecord> indexFaces(String collectionId, byte[] image) {
+        return rekognition.indexFaces(new IndexFacesRequest()
+                .withCollectionId(collectionId)
+                .withImage(image(image)))
+                .getFaceRecords();
+    }
+
+    @Override
+    public List<FaceMatch> searchFaces(String collectionId, String faceId, float threshold) {
+        return rekognition.searchFaces(new SearchFacesRequest()
+                .withCollectionId(collectionId)
+                .withFaceId(faceId)
+                .withMaxFaces(1)
+                .withFaceMatchThreshold(threshold))
+                .getFaceMatches();
+    }
+
+    @Override
+    public void deleteFaces(String collectionId, List<String> faceIds) {
+        rekognition.deleteFaces(new DeleteFacesRequest()
+                .withCollectionId(collectionId)
+                .withFaceIds(faceIds));
+    }
+
+    @Override
+    public List<TextDetection> detectText(byte[] image) {
+        return rekognition.detectText(new DetectTextRequest()
+                .withImage(image(image)))
+                .getTextDetections();
+    }
+
+    private static Image image(byte[] image) {
+        return new Image().withBytes(ByteBuffer.wrap(image));
+    }
+}
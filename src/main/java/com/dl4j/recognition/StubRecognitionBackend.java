@@ -0,0 +1,101 @@
+package com.dl4j.recognition;
+
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.Face;
+import com.amazonaws.services.rekognition.model.FaceMatch;
+import com.amazonaws.services.rekognition.model.FaceRecord;
+import com.amazonaws.services.rekognition.model.TextDetection;
+import com.amazonaws.services.rekognition.model.TextTypes;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process recognition without network or credentials, to run and load test the
+ * streaming and OCR paths offline.
+ *
+ * Every image has one face in its centre that matches "stub" and one line of text.
+ * Calls take latencyMillis, and failureRate of them throw an IOException, to see
+ * the timeouts, retries and circuit breaker of the {@link RecognitionService} at work.
+ * */
+public class StubRecognitionBackend implements FaceRecognitionBackend, TextRecognitionBackend {
+
+    private final long latencyMillis;
+    private final double failureRate;
+    private final AtomicLong calls = new AtomicLong();
+
+    public StubRecognitionBackend() {
+        this(0, 0);
+    }
+
+    /**
+     * @param latencyMillis     time every call takes
+     * @param failureRate       fraction of calls from 0 to 1 that fail
+     * */
+    public StubRecognitionBackend(long latencyMillis, double failureRate) {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+    }
+
+    @Override
+    public List<FaceRecord> indexFaces(String collectionId, byte[] image) throws Exception {
+        call();
+        final Face face = new Face()
+                .withFaceId(UUID.randomUUID().toString())
+                .withBoundingBox(new BoundingBox()
+                        .withLeft(0.375f)
+                        .withTop(0.25f)
+                        .withWidth(0.25f)
+                        .withHeight(0.5f))
+                .withConfidence(99f);
+        return Collections.singletonList(new FaceRecord().withFace(face));
+    }
+
+    @Override
+    public List<FaceMatch> searchFaces(String collectionId, String faceId, float threshold) throws Exception {
+        call();
+        final Face face = new Face()
+                .withFaceId("stub-face")
+                .withExternalImageId("stub")
+                .withConfidence(99f);
+        return Collections.singletonList(new FaceMatch().withFace(face).withSimilarity(95f));
+    }
+
+    @Override
+    public void deleteFaces(String collectionId, List<String> faceIds) throws Exception {
+        call();
+    }
+
+    @Override
+    public List<TextDetection> detectText(byte[] image) throws Exception {
+        call();
+        final List<TextDetection> textDetections = new ArrayList<>();
+        textDetections.add(new TextDetection()
+                .withId(0)
+                .withDetectedText("stub " + image.length + " bytes")
+                .withType(TextTypes.LINE)
+                .withConfidence(99f));
+        return textDetections;
+    }
+
+    /**
+     * @return  calls made so far
+     * */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    private void call() throws IOException, InterruptedException {
+        calls.incrementAndGet();
+        if(latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        if(failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            throw new IOException("stub failure");
+        }
+    }
+}
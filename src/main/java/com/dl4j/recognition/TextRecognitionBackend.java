@@ -0,0 +1,16 @@
+package com.dl4j.recognition;
+
+import com.amazonaws.services.rekognition.model.TextDetection;
+import java.util.List;
+
+/**
+ * The remote text recognition call, made blocking by the threads of a
+ * {@link RecognitionService}, which adds the timeouts, retries and limits.
+ * */
+public interface TextRecognitionBackend {
+
+    /**
+     * @param image     JPEG or PNG bytes
+     * */
+    List<TextDetection> detectText(byte[] image) throws Exception;
+}
@@ -0,0 +1,268 @@
+package com.dl4j.server;
+
+import com.dl4j.utils.JavaCVHelper;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+
+/**
+ * Hands the latest frame of a stream to any number of MJPEG viewers.
+ *
+ * The producer publishes frames without encoding them. A frame is encoded once per
+ * {@link Rendition}, size and quality, into one multipart part, header, JPEG and
+ * boundary, and every viewer of that rendition writes the same bytes, so the encode
+ * cost does not grow with the number of viewers. The parts of the latest frame are
+ * cached until a newer frame is published.
+ * */
+public class FramePublisher {
+
+    private static Logger log =
+            LoggerFactory.getLogger(FramePublisher.class);
+
+    private final String boundary;
+    private final ByteBuffer trailer;
+    private final Object encodeLock = new Object();
+    private final Map<Rendition, EncodedFrame> encoded = new HashMap<>();
+
+    private Mat latest;
+    private long sequence;
+    private boolean closed;
+    private long encodedSequence;
+    private volatile int jpegQuality = JavaCVHelper.DEFAULT_JPEG_QUALITY;
+
+    /**
+     * @param boundary  multipart boundary written after every frame
+     * */
+    public FramePublisher(String boundary) {
+        this.boundary = boundary;
+        this.trailer = directBuffer(("\r\n--" + boundary + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Make mat the latest frame. The mat must not be changed after it is published.
+     * */
+    public synchronized void publish(Mat mat) {
+        latest = mat;
+        sequence++;
+        notifyAll();
+    }
+
+    /**
+     * Wait for a frame newer than the given sequence.
+     * @param after     sequence of the last frame seen, 0 for none
+     * @return  sequence of the latest frame, or 0 once the publisher is closed
+     * */
+    public synchronized long await(long after) throws InterruptedException {
+        while(sequence <= after && !closed) {
+            wait();
+        }
+        return closed ? 0 : sequence;
+    }
+
+    /**
+     * Wait for a frame newer than the given sequence, or until timeoutMillis passed.
+     * @param after     sequence of the last frame seen, 0 for none
+     * @return  sequence of the latest frame, which is after itself on a timeout,
+     *          or 0 once the publisher is closed
+     * */
+    public synchronized long await(long after, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while(sequence <= after && !closed && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return closed ? 0 : sequence;
+    }
+
+    /**
+     * Encode the latest frame, or take it from the cache if this rendition of it
+     * is encoded already.
+     * @return  the encoded frame, null before the first frame
+     * */
+    public EncodedFrame encode(Rendition rendition) throws IOException {
+        synchronized(encodeLock) {
+            final Mat mat;
+            final long frameSequence;
+            synchronized(this) {
+                mat = latest;
+                frameSequence = sequence;
+            }
+            if(mat == null) {
+                return null;
+            }
+
+            if(frameSequence > encodedSequence) {
+                encoded.clear();
+                encodedSequence = frameSequence;
+            }
+            EncodedFrame frame = encoded.get(rendition);
+            if(frame == null) {
+                frame = encode(frameSequence, mat, rendition);
+                encoded.put(rendition, frame);
+            }
+            return frame;
+        }
+    }
+
+    private EncodedFrame encode(long frameSequence, Mat mat, Rendition rendition) throws IOException {
+        Mat image = mat;
+        if(rendition.width > 0 && rendition.width < mat.cols()) {
+            final int height = Math.max(1,
+                    (int) Math.round((double) mat.rows() * rendition.width / mat.cols()));
+            image = new Mat();
+            resize(mat, image, new Size(rendition.width, height), 0, 0, INTER_AREA);
+        }
+
+        // One copy out of the native JPEG of this thread into the buffer the viewers share
+        final BytePointer jpeg = JavaCVHelper.encodeMatToJPG(image,
+                rendition.quality > 0 ? rendition.quality : jpegQuality);
+        final ByteBuffer jpegBuffer = ByteBuffer.allocateDirect((int) jpeg.limit());
+        jpegBuffer.put(jpeg.asByteBuffer());
+        jpegBuffer.flip();
+
+        final byte[] header = ("Content-type: image/jpeg\r\n" +
+                "Content-Length: " + jpegBuffer.remaining() + "\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+        return new EncodedFrame(frameSequence,
+                directBuffer(header), jpegBuffer.asReadOnlyBuffer(), trailer);
+    }
+
+    private static ByteBuffer directBuffer(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @param jpegQuality   JPEG quality from 0 to 100 of frames encoded from now on,
+     *                      for renditions that do not ask for their own
+     * */
+    public void setJpegQuality(int jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * @return  sequence of the latest published frame, 0 before the first one
+     * */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Release all waiting viewers.
+     * */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+        log.debug("Frame publisher closed after " + sequence + " frames");
+    }
+
+    /**
+     * Size and quality a frame is encoded with.
+     * */
+    public static class Rendition {
+
+        public static final Rendition ORIGINAL = new Rendition(0, 0);
+
+        private final int width;
+        private final int quality;
+
+        /**
+         * @param width     scale down to this width keeping the aspect ratio, 0 for the frame size
+         * @param quality   JPEG quality from 1 to 100, 0 for the publisher quality
+         * */
+        public Rendition(int width, int quality) {
+            this.width = Math.max(0, width);
+            this.quality = Math.max(0, Math.min(100, quality));
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getQuality() {
+            return quality;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Rendition)) {
+                return false;
+            }
+            final Rendition other = (Rendition) o;
+            return width == other.width && quality == other.quality;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * width + quality;
+        }
+
+        @Override
+        public String toString() {
+            return "w=" + width + "&q=" + quality;
+        }
+    }
+
+    /**
+     * One published frame as a multipart part, its header, JPEG and boundary
+     * in read-only direct buffers shared by all viewers.
+     * */
+    public static class EncodedFrame {
+
+        private final long sequence;
+        private final ByteBuffer header;
+        private final ByteBuffer jpeg;
+        private final ByteBuffer trailer;
+
+        EncodedFrame(long sequence, ByteBuffer header, ByteBuffer jpeg, ByteBuffer trailer) {
+            this.sequence = sequence;
+            this.header = header;
+            this.jpeg = jpeg;
+            this.trailer = trailer;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return  header, JPEG and boundary, with positions of their own for one viewer
+         * */
+        public ByteBuffer[] buffers() {
+            return new ByteBuffer[] {header.duplicate(), jpeg.duplicate(), trailer.duplicate()};
+        }
+
+        public int getLength() {
+            return header.remaining() + jpeg.remaining() + trailer.remaining();
+        }
+
+        /**
+         * @return  the JPEG alone, with a position of its own
+         * */
+        public ByteBuffer getJpeg() {
+            return jpeg.duplicate();
+        }
+    }
+}
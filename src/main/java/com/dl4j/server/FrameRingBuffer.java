@@ -0,0 +1,141 @@
+package com.dl4j.server;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last frames of one capture thread, for any number of readers.
+ *
+ * One thread writes, every other thread only reads, and neither side takes a lock.
+ * The writer puts an immutable {@link Entry} in the next slot and only then advances
+ * the published sequence. A reader finds the slot of a sequence and checks that the
+ * entry in it still carries that sequence, so a slot the writer has moved on to since
+ * is recognised as overwritten instead of returning the wrong frame.
+ *
+ * Published mats must not be changed, readers may hold on to them after their slot
+ * has been reused.
+ * */
+public class FrameRingBuffer {
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int capacity;
+
+    // written by the single writer thread only
+    private volatile long sequence;
+
+    /**
+     * @param capacity  frames kept for {@link #history(int)}
+     * */
+    public FrameRingBuffer(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Add a frame, overwriting the oldest one. Must only be called from the writer thread.
+     * @return  sequence of the frame, starting at 1
+     * */
+    public long publish(Mat mat) {
+        final long next = sequence + 1;
+        slots.set(slot(next), new Entry(next, System.currentTimeMillis(), mat));
+        sequence = next;
+        return next;
+    }
+
+    /**
+     * @return  the latest frame, null before the first one
+     * */
+    public Entry latest() {
+        while(true) {
+            final long latest = sequence;
+            if(latest == 0) {
+                return null;
+            }
+            final Entry entry = get(latest);
+            if(entry != null) {
+                return entry;
+            }
+            // the writer went a whole lap around the ring in between, try its newer frame
+        }
+    }
+
+    /**
+     * @return  the frame of the given sequence, null if it is not published yet or overwritten
+     * */
+    public Entry get(long frameSequence) {
+        if(frameSequence < 1 || frameSequence > sequence) {
+            return null;
+        }
+        final Entry entry = slots.get(slot(frameSequence));
+        return entry != null && entry.sequence == frameSequence ? entry : null;
+    }
+
+    /**
+     * @param count     frames wanted, at most the capacity are kept
+     * @return  up to count of the latest frames, oldest first
+     * */
+    public List<Entry> history(int count) {
+        final long latest = sequence;
+        final long first = Math.max(1, latest - Math.min(count, capacity) + 1);
+        final List<Entry> entries = new ArrayList<>();
+        for(long frameSequence = first; frameSequence <= latest; frameSequence++) {
+            final Entry entry = get(frameSequence);
+            // older frames may be overwritten while we read, keep the newer ones
+            if(entry == null) {
+                entries.clear();
+            } else {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return  sequence of the latest frame, 0 before the first one
+     * */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private int slot(long frameSequence) {
+        return (int) (frameSequence % capacity);
+    }
+
+    /**
+     * One captured frame.
+     * */
+    public static class Entry {
+
+        private final long sequence;
+        private final long timestampMillis;
+        private final Mat mat;
+
+        Entry(long sequence, long timestampMillis, Mat mat) {
+            this.sequence = sequence;
+            this.timestampMillis = timestampMillis;
+            this.mat = mat;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        public Mat getMat() {
+            return mat;
+        }
+    }
+}
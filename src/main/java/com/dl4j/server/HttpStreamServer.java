@@ -1,119 +1,73 @@
 package com.dl4j.server;
 
-import com.dl4j.utils.JavaCVHelper;
 import org.bytedeco.javacpp.opencv_core.Mat;
-import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.Java2DFrameConverter;
-import org.bytedeco.javacv.OpenCVFrameConverter;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Date;
 
 /**
  * https://github.com/mesutpiskin/opencv-livestream-over-http
+ *
+ * Frames are pushed with {@link #publish(Mat)}, encoded once for all viewers by a
+ * {@link FramePublisher} and streamed by a non-blocking {@link MjpegStreamServer}.
  * */
 public class HttpStreamServer implements Runnable {
 
-    private static Logger log =
-            LoggerFactory.getLogger(HttpStreamServer.class);
-
-    private static ServerSocket serverSocket;
-    private static RequestHandler requestHandler;
-    private static Thread thread;
-    private int port;
     private final String boundary = "stream";
-    public Mat frame;
+    private final FramePublisher publisher = new FramePublisher(boundary);
+    private final MjpegStreamServer streamServer;
 
     public HttpStreamServer(int port, Mat frame) {
-        this.port = port;
-        this.frame = frame;
+        this(port, frame,
+                MjpegStreamServer.DEFAULT_MAX_CONNECTIONS,
+                MjpegStreamServer.DEFAULT_IDLE_TIMEOUT_MILLIS);
     }
 
-    public void run() {
-        try {
-            log.debug("Stream server running on localhost:" + port);
-            startStreamingServer();
-            while(true) {
-                requestHandler = new RequestHandler(serverSocket.accept(), frame);
-                thread = new Thread(requestHandler);
-                thread.start();
-            }
-        } catch(IOException ioe) {
-            log.error("Error streaming at run()", ioe);
+    /**
+     * @param maxConnections    viewers served at the same time
+     * @param idleTimeoutMillis disconnect viewers that take no data for this long
+     * */
+    public HttpStreamServer(int port, Mat frame, int maxConnections, long idleTimeoutMillis) {
+        this.streamServer = new MjpegStreamServer(port, publisher, maxConnections, idleTimeoutMillis);
+        if(frame != null) {
+            publish(frame);
         }
     }
 
-    public void close() throws IOException {
-        finalize();
+    public void run() {
+        streamServer.run();
     }
 
-    protected void finalize() throws IOException {
-        serverSocket.close();
+    /**
+     * Bind the port and stream from a thread of the server.
+     * */
+    public void start() throws IOException {
+        streamServer.start();
     }
 
-    private void startStreamingServer() throws IOException {
-        this.serverSocket = new ServerSocket(port);
+    /**
+     * Stream mat to every viewer. The mat must not be changed afterwards.
+     * */
+    public void publish(Mat mat) {
+        publisher.publish(mat);
     }
 
-    private class RequestHandler implements Runnable {
-        private Socket clientSocket;
-        private Mat frame;
-        private OutputStream outputStream;
-
-        public RequestHandler(Socket clientSocket, Mat frame)
-                throws IOException {
-
-            this.clientSocket = clientSocket;
-            this.frame = frame;
-
-            writeHeader(this.clientSocket.getOutputStream(), boundary);
-        }
+    /**
+     * @param jpegQuality   JPEG quality from 0 to 100 of the streamed frames
+     * */
+    public void setJpegQuality(int jpegQuality) {
+        publisher.setJpegQuality(jpegQuality);
+    }
 
-        public void run() {
-            boolean loop = true;
-            while(loop) {
-                if(frame == null) {
-                    log.debug("frame is null");
-                    return;
-                }
+    public int getViewers() {
+        return streamServer.getViewers();
+    }
 
-                try {
-                    log.debug("sending image ... " + new Date());
-                    outputStream = clientSocket.getOutputStream();
-                    BufferedImage img = JavaCVHelper.saveMatToBufferImage(frame);
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    ImageIO.write(img, "jpg", baos);
-                    byte[] imageBytes = baos.toByteArray();
-                    outputStream.write(("Content-type: image/jpeg\r\n" +
-                            "Content-Length: " + imageBytes.length + "\r\n" +
-                            "\r\n").getBytes());
-                    outputStream.write(imageBytes);
-                    outputStream.write(("\r\n--" + boundary + "\r\n").getBytes());
-                } catch(Exception e) {
-                    log.error("Error streaming image", e);
-                    loop = false;
-                }
-            }
-        }
+    public void close() throws IOException {
+        finalize();
+    }
 
-        private void writeHeader(OutputStream stream, String boundary)
-                throws IOException {
-            stream.write(("HTTP/1.0 200 OK\r\n" +
-                    "Connection: close\r\n" +
-                    "Max-Age: 0\r\n" +
-                    "Expires: 0\r\n" +
-                    "Cache-Control: no-store, no-cache, must-revalidate, pre-check=0, post-check=0, max-age=0\r\n" +
-                    "Pragma: no-cache\r\n" +
-                    "Content-Type: multipart/x-mixed-replace; " +
-                    "boundary=" + boundary + "\r\n" +
-                    "\r\n" +
-                    "--" + boundary + "\r\n").getBytes());
-        }
+    protected void finalize() throws IOException {
+        publisher.close();
+        streamServer.close();
     }
 }
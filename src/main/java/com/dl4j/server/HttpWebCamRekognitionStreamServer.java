@@ -1,178 +1,396 @@
 package com.dl4j.server;
 
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.rekognition.AmazonRekognition;
-import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
-import com.amazonaws.services.rekognition.model.DeleteFacesRequest;
+import com.amazonaws.services.rekognition.model.BoundingBox;
 import com.amazonaws.services.rekognition.model.FaceMatch;
 import com.amazonaws.services.rekognition.model.FaceRecord;
-import com.amazonaws.services.rekognition.model.Image;
-import com.amazonaws.services.rekognition.model.IndexFacesRequest;
-import com.amazonaws.services.rekognition.model.IndexFacesResult;
-import com.amazonaws.services.rekognition.model.SearchFacesRequest;
-import com.amazonaws.services.rekognition.model.SearchFacesResult;
+import com.dl4j.metrics.MetricsRegistry;
+import com.dl4j.recognition.CircuitBreaker;
+import com.dl4j.recognition.FaceRecognitionBackend;
+import com.dl4j.recognition.LocalFaceRecognizer;
+import com.dl4j.recognition.RecognitionService;
+import com.dl4j.recognition.RekognitionBackend;
 import com.dl4j.utils.JavaCVHelper;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import com.dl4j.utils.PerceptualHash;
+import com.dl4j.utils.PerceptualHashCache;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import javax.imageio.ImageIO;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.management.JMException;
 import org.bytedeco.javacpp.opencv_core.Mat;
-import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.FrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
-import org.bytedeco.javacv.OpenCVFrameGrabber;
+import org.bytedeco.javacpp.opencv_core.Rect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class will stream frame every 6 sec from web cam and upload to S3.
+ * This class will stream the frames of the web cam as MJPEG and look for known faces in
+ * the latest frame every recognitionIntervalMillis, by Rekognition or a
+ * {@link LocalFaceRecognizer}, reporting the matches to the log.
+ *
+ * Frames and face crops are deduplicated by perceptual hash before Rekognition is
+ * called: a frame that looks like a recent one reuses its matches without any remote
+ * call, and a face that looks like a recently searched one skips its searchFaces call.
+ * Such a hit reports the identities found the last time, which is only right while the
+ * same people are in view, hence the small distances and the expiry of the results.
+ *
+ * The calls go through a {@link RecognitionService}, so the stream never waits on the
+ * network: a new frame is only recognized once the previous one is done, in between
+ * frames are passed over.
+ *
+ * The metrics are registered as a platform MBean only with -DjmxEnabled=true, like the
+ * jmxEnabled setting of the object detection.
  * */
 public class HttpWebCamRekognitionStreamServer implements Runnable {
 
     private static Logger log =
             LoggerFactory.getLogger(HttpWebCamRekognitionStreamServer.class);
 
-    private static ServerSocket serverSocket;
-    private static RequestHandler requestHandler;
-    private static Mat mat;
-    private static Thread thread;
-
     private final int port;
-    private final FrameGrabber frameGrabber;
-    private final AmazonRekognition rekognition;
+    private final int camDeviceNumber;
+    private final RecognitionService recognitionService;
+    // null unless faces are matched in process instead of by the face recognition backend
+    private final LocalFaceRecognizer localRecognizer;
 
     private final String boundary = "stream";
+    private final long recognitionIntervalMillis = 1000;
+    private final FramePublisher publisher = new FramePublisher(boundary);
+    private final Consumer<Mat> streamListener = publisher::publish;
+    private final MjpegStreamServer streamServer;
+    private volatile boolean closed;
+
+    // A hit reuses the identities of another frame or face, so only allow for the few bits
+    // that sensor noise and compression flip and expire the results soon
+    public static final int DEFAULT_FRAME_MAX_DISTANCE = 2;
+    public static final int DEFAULT_FACE_MAX_DISTANCE = 4;
+    public static final long DEFAULT_CACHE_TTL_MILLIS = 10000;
+
+    private final PerceptualHashCache<Recognition> frameCache;
+    private final PerceptualHashCache<List<FaceMatch>> faceCache;
+    private final MetricsRegistry metrics = new MetricsRegistry("webcam_rekognition");
+    private final LongAdder rekognitionCalls = metrics.counter("rekognition_calls");
+    private final LongAdder savedCalls = metrics.counter("rekognition_calls_saved");
+    private final LongAdder skippedFrames = metrics.counter("frames_skipped");
+    private final LongAdder localRecognitions = metrics.counter("local_recognitions");
+
+    private static final String COLLECTION_ID = "aws-sin1";
+    private static final float FACE_MATCH_THRESHOLD = 90;
 
     public HttpWebCamRekognitionStreamServer(int port, int camDeviceNumber) {
+        this(port, camDeviceNumber,
+                MjpegStreamServer.DEFAULT_MAX_CONNECTIONS,
+                MjpegStreamServer.DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxConnections    viewers served at the same time
+     * @param idleTimeoutMillis disconnect viewers that take no data for this long
+     * */
+    public HttpWebCamRekognitionStreamServer(
+            int port,
+            int camDeviceNumber,
+            int maxConnections,
+            long idleTimeoutMillis) {
+        this(port, camDeviceNumber, maxConnections, idleTimeoutMillis,
+                RekognitionBackend.create(Regions.US_EAST_1, (int) RecognitionService.DEFAULT_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * @param backend   Rekognition, or a StubRecognitionBackend to run offline
+     * */
+    public HttpWebCamRekognitionStreamServer(
+            int port,
+            int camDeviceNumber,
+            int maxConnections,
+            long idleTimeoutMillis,
+            FaceRecognitionBackend backend) {
+        this(port, camDeviceNumber, maxConnections, idleTimeoutMillis, backend,
+                DEFAULT_FRAME_MAX_DISTANCE, DEFAULT_FACE_MAX_DISTANCE, DEFAULT_CACHE_TTL_MILLIS);
+    }
+
+    /**
+     * Match faces in process, one {@link LocalFaceRecognizer#identify} call per frame
+     * instead of the index, search and delete calls to a backend.
+     * */
+    public HttpWebCamRekognitionStreamServer(
+            int port,
+            int camDeviceNumber,
+            int maxConnections,
+            long idleTimeoutMillis,
+            LocalFaceRecognizer localRecognizer) {
+        this(port, camDeviceNumber, maxConnections, idleTimeoutMillis, null, localRecognizer,
+                DEFAULT_FRAME_MAX_DISTANCE, -1, DEFAULT_CACHE_TTL_MILLIS);
+    }
+
+    /**
+     * @param frameMaxDistance  bits of the 64 bit dHash of a frame that may differ for it to
+     *                          reuse the matches of a recent frame, -1 to recognize every frame
+     * @param faceMaxDistance   bits of the 64 bit pHash of a face crop that may differ for it to
+     *                          reuse the matches of a recent face, -1 to search every face
+     * @param cacheTtlMillis    time the matches of a frame or face are reused for
+     * */
+    public HttpWebCamRekognitionStreamServer(
+            int port,
+            int camDeviceNumber,
+            int maxConnections,
+            long idleTimeoutMillis,
+            FaceRecognitionBackend backend,
+            int frameMaxDistance,
+            int faceMaxDistance,
+            long cacheTtlMillis) {
+        this(port, camDeviceNumber, maxConnections, idleTimeoutMillis, backend, null,
+                frameMaxDistance, faceMaxDistance, cacheTtlMillis);
+    }
 
-        this.rekognition = AmazonRekognitionClientBuilder.standard()
-                .withCredentials(new AWSStaticCredentialsProvider(
-                        new ProfileCredentialsProvider().getCredentials()))
-                .withRegion(Regions.US_EAST_1)
-                .build();
+    private HttpWebCamRekognitionStreamServer(
+            int port,
+            int camDeviceNumber,
+            int maxConnections,
+            long idleTimeoutMillis,
+            FaceRecognitionBackend backend,
+            LocalFaceRecognizer localRecognizer,
+            int frameMaxDistance,
+            int faceMaxDistance,
+            long cacheTtlMillis) {
 
+        this.frameCache = new PerceptualHashCache<>(64, frameMaxDistance, cacheTtlMillis);
+        this.faceCache = new PerceptualHashCache<>(256, faceMaxDistance, cacheTtlMillis);
+        this.localRecognizer = localRecognizer;
+        // Local matching fails the same way on a retry and runs one frame at a time anyway
+        this.recognitionService = localRecognizer == null ?
+                new RecognitionService(backend, null, metrics) :
+                new RecognitionService(null, null,
+                        1,
+                        RecognitionService.DEFAULT_TIMEOUT_MILLIS,
+                        1,
+                        RecognitionService.DEFAULT_RETRY_BASE_MILLIS,
+                        new CircuitBreaker(5, 30000),
+                        metrics);
         this.port = port;
-        this.frameGrabber = new OpenCVFrameGrabber(camDeviceNumber);
+        this.camDeviceNumber = camDeviceNumber;
+        this.streamServer = new MjpegStreamServer(port, publisher, maxConnections, idleTimeoutMillis);
+
+        metrics.gauge("frame_cache_hits", frameCache::getHits);
+        metrics.gauge("frame_cache_misses", frameCache::getMisses);
+        metrics.gauge("frame_cache_hit_rate", frameCache::getHitRate);
+        metrics.gauge("face_cache_hits", faceCache::getHits);
+        metrics.gauge("face_cache_misses", faceCache::getMisses);
+        metrics.gauge("face_cache_hit_rate", faceCache::getHitRate);
+        if(Boolean.getBoolean("jmxEnabled")) {
+            try {
+                metrics.registerMBean("com.dl4j:type=HttpWebCamRekognitionStreamServer,port=" + port);
+            } catch(JMException e) {
+                log.error("Error registering metrics bean", e);
+            }
+        }
     }
 
+    /**
+     * Stream the frames of the shared web cam capture and look for faces in the latest
+     * one every recognitionIntervalMillis, without holding up the capture thread.
+     * */
     public void run() {
+        final WebCamCapture capture = WebCamCapture.open(camDeviceNumber, WebCamCapture.DEFAULT_HISTORY);
         try {
             log.debug("Web cam stream running on localhost:" + port);
-            startStreamingServer();
-            frameGrabber.start();
-            while(true) {
-                requestHandler = new RequestHandler(serverSocket.accept());
-                thread = new Thread(requestHandler);
-                thread.start();
+            capture.addListener(streamListener);
+            streamServer.start();
+
+            long recognizedSequence = 0;
+            CompletableFuture<Void> recognition = CompletableFuture.completedFuture(null);
+            while(!closed && !capture.isClosed()) {
+                final FrameRingBuffer.Entry entry = capture.getFrames().latest();
+                if(entry != null && entry.getSequence() > recognizedSequence) {
+                    if(!recognition.isDone()) {
+                        skippedFrames.increment();
+                    } else {
+                        recognizedSequence = entry.getSequence();
+                        recognition = recognizeFaces(entry.getMat()).exceptionally(throwable -> {
+                            log.error("Error recognizing faces", throwable);
+                            return null;
+                        });
+                    }
+                }
+                Thread.sleep(recognitionIntervalMillis);
             }
+        } catch(InterruptedException ie) {
+            log.debug("web cam stream interrupted");
+        } catch(Exception e) {
+            log.error("Error streaming at run()", e);
+        } finally {
+            // No more frames will come, also when the camera failed, so let the viewers go
+            capture.removeListener(streamListener);
+            capture.close();
+            publisher.close();
+            streamServer.close();
+            recognitionService.close();
+        }
+    }
+
+    /**
+     * @return  completes once the matches of the frame are reported
+     * */
+    private CompletableFuture<Void> recognizeFaces(Mat mat) {
+        final long frameHash = PerceptualHash.dHash(mat);
+        final Recognition cached = frameCache.get(frameHash);
+        if(cached != null) {
+            // Nothing moved, none of the calls this frame took last time are needed
+            savedCalls.add(cached.calls);
+            report(cached.faceMatches);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        log.debug("recognizing image ... " + new Date());
+        if(localRecognizer != null) {
+            localRecognitions.increment();
+            return recognitionService.submit(null, () -> localRecognizer.identify(mat, FACE_MATCH_THRESHOLD))
+                    .thenAccept(faceMatches -> {
+                        report(faceMatches);
+                        frameCache.put(frameHash, new Recognition(
+                                Collections.unmodifiableList(faceMatches), 0));
+                    });
+        }
+
+        final byte[] imageBytes;
+        try {
+            imageBytes = JavaCVHelper.encodeMatToJPGBytes(mat, JavaCVHelper.DEFAULT_JPEG_QUALITY);
         } catch(IOException ioe) {
-            log.error("Error streaming at run()", ioe);
+            final CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ioe);
+            return failed;
         }
+
+        // Rekognition only searches faces in its collection, so the faces of the frame are
+        // indexed into it, searched for by their face id and deleted again
+        final AtomicLong calls = new AtomicLong(1);
+        rekognitionCalls.increment();
+        return recognitionService.indexFaces(COLLECTION_ID, imageBytes).thenCompose(faceRecords -> {
+            final List<CompletableFuture<List<FaceMatch>>> searches = new ArrayList<>();
+            final List<String> faceIds = new ArrayList<>();
+            for (FaceRecord faceRecord : faceRecords) {
+                final String faceId = faceRecord.getFace().getFaceId();
+                faceIds.add(faceId);
+
+                final Mat face = crop(mat, faceRecord.getFace().getBoundingBox());
+                final long faceHash = face == null ? 0 : PerceptualHash.pHash(face);
+                final List<FaceMatch> faceMatches = face == null ? null : faceCache.get(faceHash);
+                if(faceMatches != null) {
+                    savedCalls.increment();
+                    searches.add(CompletableFuture.completedFuture(faceMatches));
+                    continue;
+                }
+                rekognitionCalls.increment();
+                calls.incrementAndGet();
+                searches.add(recognitionService
+                        .searchFaces(COLLECTION_ID, faceId, FACE_MATCH_THRESHOLD)
+                        .thenApply(matches -> {
+                            if(face != null) {
+                                faceCache.put(faceHash, matches);
+                            }
+                            return matches;
+                        }));
+            }
+
+            final CompletableFuture<Void> searched =
+                    CompletableFuture.allOf(searches.toArray(new CompletableFuture<?>[0]));
+            if(!faceIds.isEmpty()) {
+                // One call for all faces of the frame instead of one per face, once the
+                // searches are done with them whatever their outcome
+                rekognitionCalls.increment();
+                calls.incrementAndGet();
+                savedCalls.add(faceIds.size() - 1);
+                searched.handle((value, throwable) -> recognitionService.deleteFaces(COLLECTION_ID, faceIds)
+                        .exceptionally(deleteThrowable -> {
+                            log.error("Error deleting faces " + faceIds, deleteThrowable);
+                            return null;
+                        }));
+            }
+
+            return searched.thenRun(() -> {
+                final List<FaceMatch> frameMatches = new ArrayList<>();
+                for(CompletableFuture<List<FaceMatch>> search: searches) {
+                    frameMatches.addAll(search.join());
+                }
+                report(frameMatches);
+                frameCache.put(frameHash, new Recognition(
+                        Collections.unmodifiableList(frameMatches), calls.get()));
+            });
+        });
     }
 
-    public void close() throws IOException {
-        finalize();
+    /**
+     * Log one line per match: the id of the matched face in the collection, its external
+     * image id and its confidence. The id of the face searched for is not reported, it is
+     * deleted right after the search and matches reused from the caches have none.
+     * */
+    private static void report(List<FaceMatch> faceMatches) {
+        for (FaceMatch faceMatch : faceMatches) {
+            log.info(
+                    faceMatch.getFace().getFaceId() + ", "
+                            + faceMatch.getFace().getExternalImageId() + ", "
+                            + faceMatch.getFace().getConfidence()
+            );
+        }
     }
 
-    protected void finalize() throws IOException {
-        serverSocket.close();
+    /**
+     * @param boundingBox   face position as fractions of the image size
+     * @return  the face area of mat, null if it is empty
+     * */
+    private static Mat crop(Mat mat, BoundingBox boundingBox) {
+        if(boundingBox == null) {
+            return null;
+        }
+        final int x = Math.max(0, Math.round(boundingBox.getLeft() * mat.cols()));
+        final int y = Math.max(0, Math.round(boundingBox.getTop() * mat.rows()));
+        final int width = Math.min(mat.cols() - x, Math.round(boundingBox.getWidth() * mat.cols()));
+        final int height = Math.min(mat.rows() - y, Math.round(boundingBox.getHeight() * mat.rows()));
+        if(width <= 0 || height <= 0) {
+            return null;
+        }
+        return new Mat(mat, new Rect(x, y, width, height));
     }
 
-    private void startStreamingServer() throws IOException {
-        this.serverSocket = new ServerSocket(port);
+    /**
+     * @return  Rekognition calls made and saved, the hit rates of the frame and face caches
+     *          and the recognition_* metrics of the {@link RecognitionService}
+     * */
+    public MetricsRegistry getMetrics() {
+        return metrics;
     }
 
-    private class RequestHandler implements Runnable {
-        private Socket clientSocket;
-        private OutputStream outputStream;
+    /**
+     * The matches of a frame and the Rekognition calls it took to find them.
+     * */
+    private static class Recognition {
 
-        public RequestHandler(Socket clientSocket)
-                throws IOException {
-            this.clientSocket = clientSocket;
-            writeHeader(this.clientSocket.getOutputStream(), boundary);
-        }
+        private final List<FaceMatch> faceMatches;
+        private final long calls;
 
-        public void run() {
-            Frame frame;
-            while(true) {
-                try {
-                    log.debug("sending image ... " + new Date());
-
-                    frame = frameGrabber.grab();
-                    JavaCVHelper.saveFrameToJPG(frame, "current-frame.jpg");
-
-                    mat = new OpenCVFrameConverter.ToMat().convert(frame);
-                    BufferedImage img = JavaCVHelper.saveMatToBufferImage(mat);
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    ImageIO.write(img, "jpg", baos);
-                    byte[] imageBytes = baos.toByteArray();
-
-                    outputStream = clientSocket.getOutputStream();
-                    outputStream.write(("Content-type: image/jpeg\r\n" +
-                            "Content-Length: " + imageBytes.length + "\r\n" +
-                            "\r\n").getBytes());
-                    outputStream.write(imageBytes);
-                    outputStream.write(("\r\n--" + boundary + "\r\n").getBytes());
-
-                    // TODO: What do with Rek
-                    final IndexFacesResult indexFacesResult =
-                            rekognition.indexFaces(new IndexFacesRequest()
-                                    .withCollectionId("aws-sin1")
-                                    .withImage(new Image()
-                                            .withBytes(ByteBuffer.wrap(imageBytes))));
-                    final ArrayList<FaceRecord> faceRecords =
-                            new ArrayList<>(indexFacesResult.getFaceRecords());
-                    String faceId;
-                    for (FaceRecord faceRecord : faceRecords) {
-                        faceId = faceRecord.getFace().getFaceId();
-                        final SearchFacesResult searchFacesResult =
-                                rekognition.searchFaces(new SearchFacesRequest()
-                                        .withCollectionId("aws-sin1")
-                                        .withFaceId(faceId)
-                                        .withMaxFaces(1)
-                                        .withFaceMatchThreshold(
-                                                new Float(90)));
-                        final ArrayList<FaceMatch> faceMatches =
-                                new ArrayList<>(searchFacesResult.getFaceMatches());
-                        for (FaceMatch faceMatch : faceMatches) {
-                            System.out.println(
-                                    faceId + ", "
-                                            + faceMatch.getFace().getExternalImageId() + ", "
-                                            + faceMatch.getFace().getConfidence()
-                            );
-                        }
-                        rekognition.deleteFaces(new DeleteFacesRequest()
-                                .withFaceIds(faceId)
-                                .withCollectionId("aws-sin1"));
-                    }
-                    Thread.sleep(1000);
-                } catch(Exception e) {
-                    log.error("Error streaming image", e);
-                }
-            }
+        Recognition(List<FaceMatch> faceMatches, long calls) {
+            this.faceMatches = faceMatches;
+            this.calls = calls;
         }
+    }
 
-        private void writeHeader(OutputStream stream, String boundary)
-                throws IOException {
-            stream.write(("HTTP/1.0 200 OK\r\n" +
-                    "Connection: close\r\n" +
-                    "Max-Age: 0\r\n" +
-                    "Expires: 0\r\n" +
-                    "Cache-Control: no-store, no-cache, must-revalidate, " +
-                    "pre-check=0, post-check=0, max-age=0\r\n" +
-                    "Pragma: no-cache\r\n" +
-                    "Content-Type: multipart/x-mixed-replace; " +
-                    "boundary=" + boundary + "\r\n" +
-                    "\r\n" +
-                    "--" + boundary + "\r\n").getBytes());
+    public void close() throws IOException {
+        finalize();
+    }
+
+    protected void finalize() throws IOException {
+        closed = true;
+        publisher.close();
+        streamServer.close();
+        recognitionService.close();
+        try {
+            metrics.unregisterMBean();
+        } catch(JMException e) {
+            log.error("Error unregistering metrics bean", e);
         }
     }
 }
@@ -5,146 +5,141 @@ import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.dl4j.utils.JavaCVHelper;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import com.dl4j.metrics.MetricsRegistry;
+import com.dl4j.snapshot.S3SnapshotStore;
+import com.dl4j.snapshot.SnapshotStore;
+import com.dl4j.snapshot.SnapshotUploader;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Date;
-import javax.imageio.ImageIO;
+import java.util.function.Consumer;
+import javax.management.JMException;
 import org.bytedeco.javacpp.opencv_core.Mat;
-import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.FrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
-import org.bytedeco.javacv.OpenCVFrameGrabber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class will stream frame every 6 sec from web cam and upload to S3.
+ * This class will stream frames from web cam and upload the latest one to S3
+ * every 3 sec, or to any other {@link SnapshotStore}.
+ *
+ * Run with -DjmxEnabled=true to also see the snapshot_* metrics over JMX.
  * */
 public class HttpWebCamS3StreamServer implements Runnable {
 
     private static Logger log =
             LoggerFactory.getLogger(HttpWebCamS3StreamServer.class);
 
-    private static ServerSocket serverSocket;
-    private static RequestHandler requestHandler;
-    private static Mat mat;
-    private static Thread thread;
-
     private final int port;
-    private final FrameGrabber frameGrabber;
-    private final AmazonS3 s3Client;
-    private final String s3BucketName;
-    private final String s3KeyName;
-
+    private final int camDeviceNumber;
     private final String boundary = "stream";
+    private final long uploadIntervalMillis = 3000;
+    private final FramePublisher publisher = new FramePublisher(boundary);
+    private final Consumer<Mat> streamListener = publisher::publish;
+    private final MjpegStreamServer streamServer;
+    private final MetricsRegistry metrics = new MetricsRegistry("webcam_s3");
+    private final SnapshotUploader snapshotUploader;
+    private volatile boolean closed;
 
     public HttpWebCamS3StreamServer(int port, int camDeviceNumber) {
+        this(port, camDeviceNumber,
+                MjpegStreamServer.DEFAULT_MAX_CONNECTIONS,
+                MjpegStreamServer.DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxConnections    viewers served at the same time
+     * @param idleTimeoutMillis disconnect viewers that take no data for this long
+     * */
+    public HttpWebCamS3StreamServer(
+            int port,
+            int camDeviceNumber,
+            int maxConnections,
+            long idleTimeoutMillis) {
+        this(port, camDeviceNumber, maxConnections, idleTimeoutMillis, createS3Store());
+    }
 
-        this.s3Client = AmazonS3ClientBuilder.standard()
+    /**
+     * @param snapshotStore     S3, or a local directory or in-memory store to run offline
+     * */
+    public HttpWebCamS3StreamServer(
+            int port,
+            int camDeviceNumber,
+            int maxConnections,
+            long idleTimeoutMillis,
+            SnapshotStore snapshotStore) {
+
+        this.port = port;
+        this.camDeviceNumber = camDeviceNumber;
+        this.streamServer = new MjpegStreamServer(port, publisher, maxConnections, idleTimeoutMillis);
+        this.snapshotUploader = new SnapshotUploader(
+                publisher, snapshotStore, "current-frame.jpg", uploadIntervalMillis, metrics);
+
+        if(Boolean.getBoolean("jmxEnabled")) {
+            try {
+                metrics.registerMBean("com.dl4j:type=HttpWebCamS3StreamServer,port=" + port);
+            } catch(JMException e) {
+                log.error("Error registering metrics bean", e);
+            }
+        }
+    }
+
+    private static SnapshotStore createS3Store() {
+        final AmazonS3 s3Client = AmazonS3ClientBuilder.standard()
                 .withCredentials(new AWSStaticCredentialsProvider(
                         new ProfileCredentialsProvider().getCredentials()))
                 .withRegion(Regions.US_EAST_1)
                 .build();
-        this.s3BucketName = "<USE YOUR BUCKET>";
-        this.s3KeyName = "current-frame.jpg";
-
-        if(!s3Client.doesBucketExistV2(s3BucketName)) {
-            s3Client.createBucket(s3BucketName);
-        }
-
-        this.port = port;
-        this.frameGrabber = new OpenCVFrameGrabber(camDeviceNumber);
+        return new S3SnapshotStore(s3Client, "<USE YOUR BUCKET>");
     }
 
+    /**
+     * Stream the frames of the shared web cam capture and upload the latest one
+     * every uploadIntervalMillis, without holding up the capture thread.
+     * */
     public void run() {
+        final WebCamCapture capture = WebCamCapture.open(camDeviceNumber, WebCamCapture.DEFAULT_HISTORY);
+        final Thread uploaderThread = new Thread(snapshotUploader, "snapshot-uploader-" + port);
         try {
             log.debug("Web cam stream running on localhost:" + port);
-            startStreamingServer();
-            frameGrabber.start();
-            while(true) {
-                requestHandler = new RequestHandler(serverSocket.accept());
-                thread = new Thread(requestHandler);
-                thread.start();
+            capture.addListener(streamListener);
+            streamServer.start();
+            uploaderThread.start();
+
+            while(!closed && !capture.isClosed()) {
+                Thread.sleep(uploadIntervalMillis);
             }
-        } catch(IOException ioe) {
-            log.error("Error streaming at run()", ioe);
+        } catch(InterruptedException ie) {
+            log.debug("web cam stream interrupted");
+        } catch(Exception e) {
+            log.error("Error streaming at run()", e);
+        } finally {
+            // No more frames will come, also when the camera failed, so let the viewers go
+            snapshotUploader.close();
+            capture.removeListener(streamListener);
+            capture.close();
+            publisher.close();
+            streamServer.close();
         }
     }
 
+    /**
+     * @return  the snapshot_* metrics of the uploads
+     * */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     public void close() throws IOException {
         finalize();
     }
 
     protected void finalize() throws IOException {
-        serverSocket.close();
-    }
-
-    private void startStreamingServer() throws IOException {
-        this.serverSocket = new ServerSocket(port);
-    }
-
-    private class RequestHandler implements Runnable {
-        private Socket clientSocket;
-        private OutputStream outputStream;
-
-        public RequestHandler(Socket clientSocket)
-                throws IOException {
-            this.clientSocket = clientSocket;
-            writeHeader(this.clientSocket.getOutputStream(), boundary);
-        }
-
-        public void run() {
-            boolean loop = true;
-            Frame frame;
-            while(loop) {
-                try {
-                    log.debug("sending image ... " + new Date());
-
-                    frame = frameGrabber.grab();
-                    JavaCVHelper.saveFrameToJPG(frame, s3KeyName);
-
-                    mat = new OpenCVFrameConverter.ToMat().convert(frame);
-                    BufferedImage img = JavaCVHelper.saveMatToBufferImage(mat);
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    ImageIO.write(img, "jpg", baos);
-                    byte[] imageBytes = baos.toByteArray();
-
-                    outputStream = clientSocket.getOutputStream();
-                    outputStream.write(("Content-type: image/jpeg\r\n" +
-                            "Content-Length: " + imageBytes.length + "\r\n" +
-                            "\r\n").getBytes());
-                    outputStream.write(imageBytes);
-                    outputStream.write(("\r\n--" + boundary + "\r\n").getBytes());
-
-                    s3Client.putObject(s3BucketName, s3KeyName, new File(s3KeyName));
-
-                    Thread.sleep(3000);
-                } catch(Exception e) {
-                    log.error("Error streaming image", e);
-                    loop = false;
-                }
-            }
-        }
-
-        private void writeHeader(OutputStream stream, String boundary)
-                throws IOException {
-            stream.write(("HTTP/1.0 200 OK\r\n" +
-                    "Connection: close\r\n" +
-                    "Max-Age: 0\r\n" +
-                    "Expires: 0\r\n" +
-                    "Cache-Control: no-store, no-cache, must-revalidate, " +
-                    "pre-check=0, post-check=0, max-age=0\r\n" +
-                    "Pragma: no-cache\r\n" +
-                    "Content-Type: multipart/x-mixed-replace; " +
-                    "boundary=" + boundary + "\r\n" +
-                    "\r\n" +
-                    "--" + boundary + "\r\n").getBytes());
+        closed = true;
+        snapshotUploader.close();
+        publisher.close();
+        streamServer.close();
+        try {
+            metrics.unregisterMBean();
+        } catch(JMException e) {
+            log.error("Error unregistering metrics bean", e);
         }
     }
 }
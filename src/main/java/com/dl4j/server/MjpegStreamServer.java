@@ -0,0 +1,669 @@
+package com.dl4j.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Non-blocking MJPEG streaming of one or more {@link FramePublisher}s on one port.
+ *
+ * Streams are registered on paths, e.g. /cam-0 and /cam-1. A request for a path without
+ * a stream of its own gets the stream registered on "/", if there is one.
+ *
+ * One selector thread serves every viewer, and one encoder thread per stream takes the
+ * frames out of its publisher while anyone is watching, both from an executor owned by
+ * the server. Each viewer holds at most one frame in a mailbox besides the one being
+ * written, so a slow viewer skips frames instead of queueing them or holding up the
+ * others. Parts are sent with gathering writes straight from the shared direct buffers
+ * of the encoded frame.
+ *
+ * Viewers choose their stream in the query string, e.g. /?w=480&amp;q=60&amp;fps=5 for
+ * frames scaled to 480 pixels wide, JPEG quality 60 and at most 5 frames a second.
+ * Viewers with the same width and quality share one encoded rendition, which is encoded
+ * no faster than its fastest viewer takes it.
+ * */
+public class MjpegStreamServer implements Runnable, Closeable {
+
+    private static Logger log =
+            LoggerFactory.getLogger(MjpegStreamServer.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+
+    private static final int MAX_REQUEST_BYTES = 8192;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.0 503 Service Unavailable\r\n" +
+            "Connection: close\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NOT_FOUND = ("HTTP/1.0 404 Not Found\r\n" +
+            "Connection: close\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final int port;
+    private final int maxConnections;
+    private final long idleTimeoutMillis;
+    private final LongSupplier nanoClock;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private final List<Client> clients = new ArrayList<>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService executor;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile Thread selectorThread;
+    private volatile int connections;
+    private volatile int viewers;
+    private volatile boolean closed;
+
+    /**
+     * A server for streams added with {@link #register(String, FramePublisher)}.
+     * @param port              port to listen on
+     * @param maxConnections    further connections are answered with 503
+     * @param idleTimeoutMillis close a connection that has not sent its request, or has
+     *                          not taken any bytes of a pending frame, for this long
+     * */
+    public MjpegStreamServer(int port, int maxConnections, long idleTimeoutMillis) {
+        this(port, maxConnections, idleTimeoutMillis, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock the time viewers and renditions are paced by, like System.nanoTime()
+     * */
+    MjpegStreamServer(int port, int maxConnections, long idleTimeoutMillis, LongSupplier nanoClock) {
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.nanoClock = nanoClock;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "mjpeg-" + port + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A server for a single stream, served on every path.
+     * */
+    public MjpegStreamServer(
+            int port,
+            FramePublisher publisher,
+            int maxConnections,
+            long idleTimeoutMillis) {
+        this(port, maxConnections, idleTimeoutMillis);
+        register("/", publisher);
+    }
+
+    /**
+     * Serve publisher on path, also while the server is running.
+     * */
+    public void register(String path, FramePublisher publisher) {
+        final Stream stream = new Stream(path, publisher);
+        if(streams.putIfAbsent(path, stream) != null) {
+            throw new IllegalArgumentException("A stream is registered on " + path + " already");
+        }
+        if(selector != null) {
+            stream.startEncoder();
+        }
+        log.debug("Stream registered on localhost:" + port + path);
+    }
+
+    /**
+     * Stop serving the stream on path, its viewers are disconnected.
+     * */
+    public void unregister(String path) {
+        final Stream stream = streams.remove(path);
+        if(stream != null) {
+            stream.stopEncoder();
+            if(selector != null) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Bind the port and serve from the executor of the server.
+     * */
+    public void start() throws IOException {
+        open();
+        executor.execute(this::serve);
+    }
+
+    /**
+     * Bind the port and serve from the calling thread until the server is closed.
+     * */
+    public void run() {
+        try {
+            open();
+        } catch(IOException ioe) {
+            log.error("Error streaming at run()", ioe);
+            stopped.countDown();
+            return;
+        }
+        serve();
+    }
+
+    private void open() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        for(Stream stream: streams.values()) {
+            stream.startEncoder();
+        }
+        log.debug("Stream server running on localhost:" + port);
+    }
+
+    private void serve() {
+        selectorThread = Thread.currentThread();
+        try {
+            while(!closed) {
+                selector.select(selectTimeoutMillis());
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    final Client client = (Client) key.attachment();
+                    try {
+                        if(key.isReadable()) {
+                            client.read();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            client.write();
+                        }
+                    } catch(IOException ioe) {
+                        log.debug("Viewer " + client.address + " left: " + ioe.getMessage());
+                        client.close();
+                    }
+                }
+
+                final long now = nanoClock.getAsLong();
+                for(Client client: new ArrayList<>(clients)) {
+                    if(client.stream != null && client.stream.stopped) {
+                        client.close();
+                    } else {
+                        client.sendIfDue(now);
+                    }
+                }
+                closeIdleClients();
+            }
+        } catch(IOException ioe) {
+            if(!closed) {
+                log.error("Error streaming at run()", ioe);
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Wake up for the earliest paced viewer with a frame waiting, or to look for idle ones.
+     * */
+    private long selectTimeoutMillis() {
+        long timeout = Math.max(1, Math.min(1000, idleTimeoutMillis / 2));
+        final long now = nanoClock.getAsLong();
+        for(Client client: clients) {
+            if(client.writing == null && client.nextFrame() != null) {
+                final long wait = TimeUnit.NANOSECONDS.toMillis(client.nextSendNanos - now) + 1;
+                timeout = Math.min(timeout, Math.max(1, wait));
+            }
+        }
+        return timeout;
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if(channel == null) {
+            return;
+        }
+        if(clients.size() >= maxConnections) {
+            log.debug("Rejecting " + channel.getRemoteAddress() +
+                    ", " + maxConnections + " connections open");
+            try {
+                channel.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE));
+            } finally {
+                channel.close();
+            }
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final Client client = new Client(channel);
+        client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+        connections = clients.size();
+    }
+
+    private void closeIdleClients() {
+        final long now = System.currentTimeMillis();
+        for(Client client: new ArrayList<>(clients)) {
+            if(client.isIdle(now)) {
+                log.debug("Closing idle viewer " + client.address);
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Next time a paced frame is due, keeping the average rate unless it fell behind.
+     * */
+    private static long nextDue(long due, long intervalNanos, long now) {
+        if(intervalNanos == 0) {
+            return now;
+        }
+        final long next = due + intervalNanos;
+        return next - now <= 0 ? now + intervalNanos : next;
+    }
+
+    static Map<String, String> parseQuery(String target) {
+        final Map<String, String> parameters = new HashMap<>();
+        final int start = target.indexOf('?');
+        if(start < 0) {
+            return parameters;
+        }
+        for(String parameter: target.substring(start + 1).split("&")) {
+            final int separator = parameter.indexOf('=');
+            if(separator > 0) {
+                parameters.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+            }
+        }
+        return parameters;
+    }
+
+    private static double parseNumber(Map<String, String> parameters, String name) {
+        try {
+            return Double.parseDouble(parameters.getOrDefault(name, "0"));
+        } catch(NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return  connections open, including the ones still sending their request
+     * */
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getViewers() {
+        return viewers;
+    }
+
+    /**
+     * @return  renditions encoded for the current viewers of all streams
+     * */
+    public int getRenditions() {
+        int count = 0;
+        for(Stream stream: streams.values()) {
+            count += stream.renditions.size();
+        }
+        return count;
+    }
+
+    /**
+     * Stop listening, disconnect every viewer and stop the threads of the server.
+     * Waits until the connections are closed unless called from the selector thread.
+     * */
+    public void close() {
+        closed = true;
+        if(selector == null) {
+            executor.shutdownNow();
+            return;
+        }
+        selector.wakeup();
+        if(Thread.currentThread() != selectorThread) {
+            try {
+                if(!stopped.await(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    log.error("Stream server on localhost:" + port + " did not stop in time");
+                }
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void shutdown() {
+        closed = true;
+        for(Stream stream: streams.values()) {
+            stream.stopEncoder();
+        }
+        executor.shutdown();
+        for(Client client: new ArrayList<>(clients)) {
+            client.close();
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch(IOException ioe) {
+            log.error("Error closing stream server", ioe);
+        }
+        log.debug("Stream server on localhost:" + port + " closed");
+        stopped.countDown();
+    }
+
+    /**
+     * One registered publisher with the renditions its viewers asked for.
+     * */
+    private class Stream {
+
+        private final String path;
+        private final FramePublisher publisher;
+        private final ByteBuffer responseHeader;
+        private final Map<FramePublisher.Rendition, Rendition> renditions = new ConcurrentHashMap<>();
+
+        // written by the selector thread
+        private volatile int viewers;
+        private volatile boolean stopped;
+        private Future<?> encoder;
+
+        Stream(String path, FramePublisher publisher) {
+            this.path = path;
+            this.publisher = publisher;
+
+            final String boundary = publisher.getBoundary();
+            final byte[] header = ("HTTP/1.0 200 OK\r\n" +
+                    "Connection: close\r\n" +
+                    "Max-Age: 0\r\n" +
+                    "Expires: 0\r\n" +
+                    "Cache-Control: no-store, no-cache, must-revalidate, " +
+                    "pre-check=0, post-check=0, max-age=0\r\n" +
+                    "Pragma: no-cache\r\n" +
+                    "Content-Type: multipart/x-mixed-replace; " +
+                    "boundary=" + boundary + "\r\n" +
+                    "\r\n" +
+                    "--" + boundary + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            this.responseHeader = ByteBuffer.allocateDirect(header.length);
+            this.responseHeader.put(header).flip();
+        }
+
+        synchronized void startEncoder() {
+            if(encoder == null && !stopped) {
+                encoder = executor.submit(this::encodeLoop);
+            }
+        }
+
+        synchronized void stopEncoder() {
+            stopped = true;
+            notifyAll();
+            if(encoder != null) {
+                encoder.cancel(true);
+            }
+        }
+
+        synchronized void setViewers(int viewers) {
+            this.viewers = viewers;
+            notifyAll();
+        }
+
+        /**
+         * Encode every new frame once for each rendition that is due, while there is a
+         * viewer, and hand them to the selector thread.
+         * */
+        private void encodeLoop() {
+            long sequence = 0;
+            try {
+                while(!stopped) {
+                    synchronized(this) {
+                        while(viewers == 0 && !stopped) {
+                            wait();
+                        }
+                    }
+                    sequence = publisher.await(sequence);
+                    if(sequence == 0) {
+                        break;
+                    }
+
+                    boolean encoded = false;
+                    final long now = nanoClock.getAsLong();
+                    for(Rendition rendition: renditions.values()) {
+                        if(rendition.viewers == 0 || now - rendition.nextEncodeNanos < 0) {
+                            continue;
+                        }
+                        rendition.latest = publisher.encode(rendition.rendition);
+                        rendition.nextEncodeNanos =
+                                nextDue(rendition.nextEncodeNanos, rendition.intervalNanos, now);
+                        encoded = true;
+                    }
+                    if(encoded) {
+                        selector.wakeup();
+                    }
+                }
+            } catch(InterruptedException ie) {
+                // unregistered or closed
+            } catch(IOException ioe) {
+                log.error("Error encoding frame of " + path, ioe);
+            }
+        }
+
+        /**
+         * Count the viewers and pace a rendition by its fastest viewer.
+         * */
+        void update(Rendition rendition) {
+            int count = 0;
+            int streamCount = 0;
+            long interval = Long.MAX_VALUE;
+            for(Client client: clients) {
+                if(client.streaming && client.stream == this) {
+                    streamCount++;
+                    if(client.rendition == rendition) {
+                        count++;
+                        interval = Math.min(interval, client.intervalNanos);
+                    }
+                }
+            }
+            rendition.intervalNanos = count == 0 ? 0 : interval;
+            rendition.viewers = count;
+            if(count == 0) {
+                renditions.remove(rendition.rendition);
+            }
+            setViewers(streamCount);
+        }
+    }
+
+    /**
+     * Viewers of a stream sharing the same size and quality.
+     * */
+    private static class Rendition {
+
+        private final FramePublisher.Rendition rendition;
+
+        // written by the selector thread
+        private volatile int viewers;
+        private volatile long intervalNanos;
+        // written by the encoder thread
+        private volatile FramePublisher.EncodedFrame latest;
+        private long nextEncodeNanos;
+
+        Rendition(FramePublisher.Rendition rendition, long nextEncodeNanos) {
+            this.rendition = rendition;
+            this.nextEncodeNanos = nextEncodeNanos;
+        }
+    }
+
+    private class Client {
+
+        private final SocketChannel channel;
+        private final String address;
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+
+        private SelectionKey key;
+        private boolean streaming;
+        private Stream stream;
+        private Rendition rendition;
+        private long intervalNanos;
+        private long nextSendNanos = nanoClock.getAsLong();
+        private ByteBuffer[] writing;
+        private long sentSequence;
+        private long lastProgressMillis = System.currentTimeMillis();
+
+        Client(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.address = String.valueOf(channel.getRemoteAddress());
+        }
+
+        void read() throws IOException {
+            if(streaming) {
+                // Nothing more is expected from a viewer, only notice when it goes away
+                request.clear();
+                if(channel.read(request) < 0) {
+                    throw new IOException("end of stream");
+                }
+                return;
+            }
+
+            if(channel.read(request) < 0) {
+                throw new IOException("end of stream");
+            }
+            lastProgressMillis = System.currentTimeMillis();
+            if(!endOfHeaders()) {
+                if(!request.hasRemaining()) {
+                    throw new IOException("request too large");
+                }
+                return;
+            }
+            startStreaming();
+        }
+
+        private boolean endOfHeaders() {
+            final int end = request.position();
+            return end >= 4 &&
+                    request.get(end - 4) == '\r' && request.get(end - 3) == '\n' &&
+                    request.get(end - 2) == '\r' && request.get(end - 1) == '\n';
+        }
+
+        private void startStreaming() throws IOException {
+            // e.g. GET /cam-0?w=480&q=60&fps=5 HTTP/1.1
+            final String requestLine = new String(request.array(), 0, request.position(),
+                    StandardCharsets.US_ASCII).split("\r\n", 2)[0];
+            final String[] parts = requestLine.split(" ");
+            final String target = parts.length > 1 ? parts[1] : "/";
+            final int query = target.indexOf('?');
+            final String path = query < 0 ? target : target.substring(0, query);
+
+            stream = streams.get(path);
+            if(stream == null) {
+                stream = streams.get("/");
+            }
+            if(stream == null) {
+                channel.write(ByteBuffer.wrap(NOT_FOUND));
+                throw new IOException("no stream on " + path);
+            }
+
+            final Map<String, String> parameters = parseQuery(target);
+            final double fps = parseNumber(parameters, "fps");
+            intervalNanos = fps > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / fps) : 0;
+            rendition = stream.renditions.computeIfAbsent(
+                    new FramePublisher.Rendition(
+                            (int) parseNumber(parameters, "w"),
+                            (int) parseNumber(parameters, "q")),
+                    key -> new Rendition(key, nanoClock.getAsLong()));
+
+            streaming = true;
+            stream.update(rendition);
+            viewers++;
+            log.debug("Viewer " + address + " streaming " + stream.path + " at " + rendition.rendition +
+                    (fps > 0 ? ", " + fps + " fps" : ""));
+            send(new ByteBuffer[] {stream.responseHeader.duplicate()});
+        }
+
+        /**
+         * @return  the latest frame of the rendition if the viewer has not had it yet
+         * */
+        FramePublisher.EncodedFrame nextFrame() {
+            final FramePublisher.EncodedFrame frame = streaming ? rendition.latest : null;
+            return frame != null && frame.getSequence() > sentSequence ? frame : null;
+        }
+
+        /**
+         * Start on the latest frame, the one-slot mailbox, once the previous frame is
+         * written and the viewer is due for another.
+         * */
+        void sendIfDue(long now) {
+            if(writing != null || now - nextSendNanos < 0) {
+                return;
+            }
+            final FramePublisher.EncodedFrame frame = nextFrame();
+            if(frame != null) {
+                sentSequence = frame.getSequence();
+                nextSendNanos = nextDue(nextSendNanos, intervalNanos, now);
+                send(frame.buffers());
+            }
+        }
+
+        private void send(ByteBuffer[] buffers) {
+            writing = buffers;
+            lastProgressMillis = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void write() throws IOException {
+            if(writing == null) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if(channel.write(writing) > 0) {
+                lastProgressMillis = System.currentTimeMillis();
+            }
+            if(writing[writing.length - 1].hasRemaining()) {
+                return;
+            }
+
+            writing = null;
+            key.interestOps(SelectionKey.OP_READ);
+            sendIfDue(nanoClock.getAsLong());
+        }
+
+        boolean isIdle(long now) {
+            return (!streaming || writing != null) && now - lastProgressMillis > idleTimeoutMillis;
+        }
+
+        void close() {
+            if(!clients.remove(this)) {
+                return;
+            }
+            connections = clients.size();
+            if(streaming) {
+                stream.update(rendition);
+                viewers--;
+            }
+            try {
+                channel.close();
+            } catch(IOException ioe) {
+                log.error("Error closing viewer " + address, ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.dl4j.server;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.javacv.OpenCVFrameGrabber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * The only thread that grabs from a web cam.
+ *
+ * A FrameGrabber is not thread-safe, so one capture thread per device grabs every
+ * frame and puts a copy into a {@link FrameRingBuffer}. Stream viewers, S3 uploads and
+ * face recognition read the latest frame or the recent ones from there, or are handed
+ * each frame as a listener, and never touch the device themselves.
+ *
+ * Captures are shared per device: {@link #open(int, int)} starts the capture on first
+ * use and every {@link #close()} releases one user, the last one stops the device.
+ * */
+public class WebCamCapture implements Runnable, Closeable {
+
+    private static Logger log =
+            LoggerFactory.getLogger(WebCamCapture.class);
+
+    public static final int DEFAULT_HISTORY = 30;
+
+    private static final Map<Integer, WebCamCapture> captures = new HashMap<>();
+
+    private final int camDeviceNumber;
+    private final FrameGrabber frameGrabber;
+    private final FrameRingBuffer frames;
+    private final List<Consumer<Mat>> listeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+
+    // guarded by captures
+    private int users;
+    private volatile boolean closed;
+
+    private WebCamCapture(int camDeviceNumber, int history) {
+        this.camDeviceNumber = camDeviceNumber;
+        this.frameGrabber = new OpenCVFrameGrabber(camDeviceNumber);
+        this.frames = new FrameRingBuffer(history);
+        this.thread = new Thread(this, "webcam-" + camDeviceNumber);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * The capture of a device, started if it is not running yet. A capture that is still
+     * stopping is waited for, so two grabbers never hold the device at the same time.
+     * @param history   frames kept in the ring buffer, only used when the capture is started
+     * */
+    public static WebCamCapture open(int camDeviceNumber, int history) {
+        synchronized(captures) {
+            WebCamCapture capture = captures.get(camDeviceNumber);
+            while(capture != null && capture.closed) {
+                try {
+                    captures.wait();
+                } catch(InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for web cam " + camDeviceNumber + " to stop");
+                }
+                capture = captures.get(camDeviceNumber);
+            }
+            if(capture == null) {
+                capture = new WebCamCapture(camDeviceNumber, history);
+                captures.put(camDeviceNumber, capture);
+                capture.thread.start();
+            }
+            capture.users++;
+            return capture;
+        }
+    }
+
+    /**
+     * Grab until the last user closed the capture or the device ends.
+     * */
+    public void run() {
+        try {
+            frameGrabber.start();
+            log.debug("Web cam " + camDeviceNumber + " capturing");
+
+            final OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+            Frame frame;
+            while(!closed && (frame = frameGrabber.grab()) != null) {
+                if(frame.image == null) {
+                    continue;
+                }
+                // The grabber reuses its buffer, readers must see the frame as it was
+                final Mat mat = converter.convert(frame).clone();
+                frames.publish(mat);
+                for(Consumer<Mat> listener: listeners) {
+                    listener.accept(mat);
+                }
+            }
+        } catch(Exception e) {
+            log.error("Error capturing web cam " + camDeviceNumber, e);
+        } finally {
+            try {
+                frameGrabber.stop();
+            } catch(FrameGrabber.Exception e) {
+                log.error("Error stopping web cam " + camDeviceNumber, e);
+            }
+            // Only now the device is free for the next capture
+            synchronized(captures) {
+                closed = true;
+                captures.remove(camDeviceNumber, this);
+                captures.notifyAll();
+            }
+            log.debug("Web cam " + camDeviceNumber + " stopped after " + frames.getSequence() + " frames");
+        }
+    }
+
+    /**
+     * Hand every frame to listener on the capture thread. Listeners must return quickly,
+     * slow consumers should read from {@link #getFrames()} on a thread of their own.
+     * */
+    public void addListener(Consumer<Mat> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Mat> listener) {
+        listeners.remove(listener);
+    }
+
+    public FrameRingBuffer getFrames() {
+        return frames;
+    }
+
+    public int getCamDeviceNumber() {
+        return camDeviceNumber;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Release this user of the capture, the last one stops the device. The capture stays
+     * registered until its thread released the device.
+     * */
+    public void close() {
+        synchronized(captures) {
+            if(closed || --users > 0) {
+                return;
+            }
+            closed = true;
+        }
+    }
+}
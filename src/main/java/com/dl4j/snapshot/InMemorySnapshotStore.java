@@ -0,0 +1,31 @@
+package com.dl4j.snapshot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep the latest snapshot of every key in memory, stands in for S3 when testing.
+ * */
+public class InMemorySnapshotStore implements SnapshotStore {
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final AtomicLong puts = new AtomicLong();
+
+    @Override
+    public void put(String key, byte[] jpeg) {
+        objects.put(key, jpeg);
+        puts.incrementAndGet();
+    }
+
+    public Map<String, byte[]> getObjects() {
+        return objects;
+    }
+
+    /**
+     * @return  snapshots put so far, over all keys
+     * */
+    public long getPuts() {
+        return puts.get();
+    }
+}
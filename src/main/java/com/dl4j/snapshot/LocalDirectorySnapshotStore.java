@@ -0,0 +1,29 @@
+package com.dl4j.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Write snapshots into a local directory, e.g. for a web server or for offline runs.
+ * A snapshot is written next to its key and moved over it, so readers never see half a JPEG.
+ * */
+public class LocalDirectorySnapshotStore implements SnapshotStore {
+
+    private final Path directory;
+
+    public LocalDirectorySnapshotStore(File directory) throws IOException {
+        this.directory = Files.createDirectories(directory.toPath());
+    }
+
+    @Override
+    public void put(String key, byte[] jpeg) throws IOException {
+        final Path target = directory.resolve(key);
+        Files.createDirectories(target.getParent());
+        final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, jpeg);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,32 @@
+package com.dl4j.snapshot;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Put snapshots into an S3 bucket straight from memory.
+ * */
+public class S3SnapshotStore implements SnapshotStore {
+
+    private final AmazonS3 s3Client;
+    private final String s3BucketName;
+
+    public S3SnapshotStore(AmazonS3 s3Client, String s3BucketName) {
+        this.s3Client = s3Client;
+        this.s3BucketName = s3BucketName;
+
+        if(!s3Client.doesBucketExistV2(s3BucketName)) {
+            s3Client.createBucket(s3BucketName);
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] jpeg) {
+        // With the length known the client does not buffer the stream again
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("image/jpeg");
+        metadata.setContentLength(jpeg.length);
+        s3Client.putObject(s3BucketName, key, new ByteArrayInputStream(jpeg), metadata);
+    }
+}
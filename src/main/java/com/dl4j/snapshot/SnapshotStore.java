@@ -0,0 +1,15 @@
+package com.dl4j.snapshot;
+
+import java.io.IOException;
+
+/**
+ * Where the {@link SnapshotUploader} puts the latest frame of a stream.
+ * */
+public interface SnapshotStore {
+
+    /**
+     * @param key   object key, replaced by every snapshot
+     * @param jpeg  the encoded frame, must not be changed by the store
+     * */
+    void put(String key, byte[] jpeg) throws IOException;
+}
@@ -0,0 +1,146 @@
+package com.dl4j.snapshot;
+
+import com.dl4j.metrics.LatencyHistogram;
+import com.dl4j.metrics.MetricsRegistry;
+import com.dl4j.server.FramePublisher;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Put the latest frame of a {@link FramePublisher} into a {@link SnapshotStore}, at most
+ * once per interval.
+ *
+ * The frame is taken as the publisher encoded it for the viewers at its original size,
+ * so no temp file is written and the frame is not encoded again while anyone watches
+ * the original stream. One uploader serves a stream however many viewers it has. A frame
+ * whose JPEG is the same as the one uploaded last, e.g. of a frozen camera, is skipped.
+ * */
+public class SnapshotUploader implements Runnable, Closeable {
+
+    private static Logger log =
+            LoggerFactory.getLogger(SnapshotUploader.class);
+
+    private final FramePublisher publisher;
+    private final SnapshotStore store;
+    private final String key;
+    private final long intervalMillis;
+    private final Object sleepLock = new Object();
+    private volatile boolean closed;
+
+    private final LongAdder uploads;
+    private final LongAdder unchanged;
+    private final LongAdder failures;
+    private final LatencyHistogram uploadLatency;
+
+    /**
+     * @param key               object key of the snapshot, replaced by every upload
+     * @param intervalMillis    time between two uploads
+     * @param metrics           registry for the snapshot_* metrics of the uploader
+     * */
+    public SnapshotUploader(
+            FramePublisher publisher,
+            SnapshotStore store,
+            String key,
+            long intervalMillis,
+            MetricsRegistry metrics) {
+        this.publisher = publisher;
+        this.store = store;
+        this.key = key;
+        this.intervalMillis = intervalMillis;
+
+        this.uploads = metrics.counter("snapshot_uploads");
+        this.unchanged = metrics.counter("snapshot_unchanged");
+        this.failures = metrics.counter("snapshot_failures");
+        this.uploadLatency = metrics.histogram("snapshot_upload");
+    }
+
+    /**
+     * Upload until closed or until the publisher is closed.
+     * */
+    public void run() {
+        final MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+
+        byte[] uploadedDigest = null;
+        long sequence = 0;
+        try {
+            while(!closed) {
+                // Wake up now and then to notice close() while no frames come
+                final long latest = publisher.await(sequence, intervalMillis);
+                if(latest <= sequence) {
+                    if(publisher.isClosed()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                final long start = System.nanoTime();
+                try {
+                    final FramePublisher.EncodedFrame frame = publisher.encode(FramePublisher.Rendition.ORIGINAL);
+                    sequence = frame.getSequence();
+                    final ByteBuffer jpeg = frame.getJpeg();
+                    sha256.update(jpeg.duplicate());
+                    final byte[] digest = sha256.digest();
+
+                    if(Arrays.equals(digest, uploadedDigest)) {
+                        unchanged.increment();
+                    } else {
+                        final byte[] bytes = new byte[jpeg.remaining()];
+                        jpeg.get(bytes);
+                        store.put(key, bytes);
+                        uploads.increment();
+                        uploadLatency.record(System.nanoTime() - start);
+                        uploadedDigest = digest;
+                    }
+                } catch(Exception e) {
+                    // Try again with the next frame
+                    sequence = latest;
+                    failures.increment();
+                    log.error("Error uploading snapshot " + key, e);
+                }
+
+                synchronized(sleepLock) {
+                    if(!closed) {
+                        sleepLock.wait(intervalMillis);
+                    }
+                }
+            }
+        } catch(InterruptedException ie) {
+            log.debug("snapshot uploader interrupted");
+        } catch(Exception e) {
+            log.error("Error uploading snapshots at run()", e);
+        }
+    }
+
+    /**
+     * Stop after the upload in progress, if any, within intervalMillis.
+     * */
+    public void close() {
+        closed = true;
+        synchronized(sleepLock) {
+            sleepLock.notifyAll();
+        }
+    }
+
+    public long getUploads() {
+        return uploads.sum();
+    }
+
+    public long getUnchanged() {
+        return unchanged.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+}
@@ -1,8 +1,10 @@
 package com.dl4j.utils;
 
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
 import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
 import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.Java2DFrameConverter;
 import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.datavec.image.loader.Java2DNativeImageLoader;
 import org.datavec.image.loader.NativeImageLoader;
@@ -14,12 +16,33 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.bytedeco.javacpp.opencv_imgcodecs.CV_IMWRITE_JPEG_QUALITY;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imencode;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
 
 public class JavaCVHelper {
 
     private static Logger log =
             LoggerFactory.getLogger(JavaCVHelper.class);
-    
+
+    /**
+     * Same as the ImageIO default.
+     * */
+    public static final int DEFAULT_JPEG_QUALITY = 75;
+
+    // The JPEG of the last encode on the thread, freed by the next one
+    private static final ThreadLocal<BytePointer> jpegBuffer = new ThreadLocal<>();
+    // Created on first use, after a Mat has loaded the native libraries
+    private static final ThreadLocal<IntPointer> jpegParams =
+            ThreadLocal.withInitial(() -> new IntPointer(CV_IMWRITE_JPEG_QUALITY, DEFAULT_JPEG_QUALITY));
+
     public static void saveIndArrayToJPG(
             INDArray indArray,
             String fileName) {
@@ -39,9 +62,9 @@ public class JavaCVHelper {
             Frame frame,
             String fileName) {
         try {
-            BufferedImage bufferedImage = new Java2DFrameConverter().convert(frame);
-            if(bufferedImage != null) {
-                ImageIO.write(bufferedImage, "jpg", new File(fileName));
+            final BytePointer jpeg = encodeFrameToJPG(frame, DEFAULT_JPEG_QUALITY);
+            if(jpeg != null) {
+                writeJPG(jpeg, fileName);
             }
         } catch(IOException ioe) {
             log.error("Error saving frame to jpg file", ioe);
@@ -91,12 +114,72 @@ public class JavaCVHelper {
             int imageHeight,
             String fileName) {
         try {
-            ImageIO.write(
-                    saveMatToBufferImage(matFile, imageWidth, imageHeight),
-                    "jpg", new File(fileName));
+            Mat image = matFile;
+            if(matFile.cols() != imageWidth || matFile.rows() != imageHeight) {
+                image = new Mat();
+                resize(matFile, image, new Size(imageWidth, imageHeight));
+            }
+            writeJPG(encodeMatToJPG(image, DEFAULT_JPEG_QUALITY), fileName);
         } catch(IOException ioe) {
             log.error("Error saving mat file to jpg", ioe);
             ioe.printStackTrace();
         }
     }
+
+    /**
+     * Encode a BGR Mat with OpenCV, without the INDArray and BufferedImage copies.
+     * The JPEG is freed by the next encode on the calling thread, so the returned
+     * pointer is only valid until then.
+     * @param quality   JPEG quality from 0 to 100
+     * @return  pointer from position 0 to the end of the JPEG at its limit
+     * */
+    public static BytePointer encodeMatToJPG(Mat matFile, int quality) throws IOException {
+        final IntPointer params = jpegParams.get();
+        params.put(1, quality);
+
+        // imencode fills a std::vector. JavaCPP copies [position, limit) of the pointer into
+        // it before the call and the JPEG back out after, into new memory if it does not fit.
+        // An empty pointer skips the first copy. A new one every time, as reallocating the
+        // memory of a kept pointer is never taken off the JavaCPP totalBytes count.
+        final BytePointer previous = jpegBuffer.get();
+        if(previous != null) {
+            previous.deallocate();
+        }
+        final BytePointer jpeg = new BytePointer();
+        jpegBuffer.set(jpeg);
+        if(!imencode(".jpg", matFile, jpeg, params)) {
+            throw new IOException("Error encoding mat to jpg");
+        }
+        return jpeg;
+    }
+
+    /**
+     * Encode a BGR Mat with OpenCV into a new array.
+     * */
+    public static byte[] encodeMatToJPGBytes(Mat matFile, int quality) throws IOException {
+        final BytePointer jpeg = encodeMatToJPG(matFile, quality);
+        final byte[] bytes = new byte[(int) jpeg.limit()];
+        jpeg.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Encode a grabbed frame in place, the Mat shares the pixels of the frame.
+     * @return  as {@link #encodeMatToJPG(Mat, int)}, null for frames without an image
+     * */
+    public static BytePointer encodeFrameToJPG(Frame frame, int quality) throws IOException {
+        if(frame == null || frame.image == null) {
+            return null;
+        }
+        return encodeMatToJPG(new OpenCVFrameConverter.ToMat().convert(frame), quality);
+    }
+
+    private static void writeJPG(BytePointer jpeg, String fileName) throws IOException {
+        try(FileChannel channel = FileChannel.open(Paths.get(fileName), CREATE, TRUNCATE_EXISTING, WRITE)) {
+            final ByteBuffer buffer = jpeg.asByteBuffer();
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
 }
@@ -0,0 +1,102 @@
+package com.dl4j.utils;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.indexer.UByteIndexer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Size;
+
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32F;
+import static org.bytedeco.javacpp.opencv_core.dct;
+import static org.bytedeco.javacpp.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.javacpp.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.javacpp.opencv_imgproc.cvtColor;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
+
+/**
+ * 64 bit perceptual hashes of images, which stay the same or differ in a few bits when
+ * an image only changes by noise, compression or lighting, and differ in many bits when
+ * its content changes. Compare two hashes with {@link #distance(long, long)}.
+ * */
+public class PerceptualHash {
+
+    private static final Size DHASH_SIZE = new Size(9, 8);
+    private static final Size PHASH_SIZE = new Size(32, 32);
+
+    /**
+     * Difference hash: one bit per neighbouring pixel pair of a 9x8 grayscale thumbnail,
+     * set where the left pixel is brighter. Cheap, and good at telling frames apart.
+     * @param image     BGR or grayscale image
+     * */
+    public static long dHash(Mat image) {
+        final Mat small = new Mat();
+        resize(gray(image), small, DHASH_SIZE, 0, 0, INTER_AREA);
+
+        long hash = 0;
+        final UByteIndexer indexer = small.createIndexer();
+        for(int y = 0; y < 8; y++) {
+            for(int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if(indexer.get(y, x) > indexer.get(y, x + 1)) {
+                    hash |= 1;
+                }
+            }
+        }
+        indexer.release();
+        return hash;
+    }
+
+    /**
+     * DCT hash: one bit per low frequency of a 32x32 grayscale thumbnail, set where it is
+     * above the median. Slower than {@link #dHash(Mat)} but more tolerant of the small
+     * shifts and scale changes between crops of the same face.
+     * @param image     BGR or grayscale image
+     * */
+    public static long pHash(Mat image) {
+        final Mat small = new Mat();
+        resize(gray(image), small, PHASH_SIZE, 0, 0, INTER_AREA);
+        final Mat pixels = new Mat();
+        small.convertTo(pixels, CV_32F);
+        final Mat frequencies = new Mat();
+        dct(pixels, frequencies);
+
+        final float[] lowFrequencies = new float[64];
+        final FloatIndexer indexer = frequencies.createIndexer();
+        for(int y = 0; y < 8; y++) {
+            for(int x = 0; x < 8; x++) {
+                lowFrequencies[y * 8 + x] = indexer.get(y, x);
+            }
+        }
+        indexer.release();
+        // The DC term is the mean brightness, leave it out of the median
+        final float[] sorted = Arrays.copyOfRange(lowFrequencies, 1, lowFrequencies.length);
+        Arrays.sort(sorted);
+        final float median = sorted[sorted.length / 2];
+
+        long hash = 0;
+        for(float frequency: lowFrequencies) {
+            hash <<= 1;
+            if(frequency > median) {
+                hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return  number of differing bits, 0 for the same content up to 64
+     * */
+    public static int distance(long hash, long other) {
+        return Long.bitCount(hash ^ other);
+    }
+
+    private static Mat gray(Mat image) {
+        if(image.channels() == 1) {
+            return image;
+        }
+        final Mat gray = new Mat();
+        cvtColor(image, gray, COLOR_BGR2GRAY);
+        return gray;
+    }
+}
@@ -0,0 +1,116 @@
+package com.dl4j.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded LRU of recently seen {@link PerceptualHash}es and the results worked out for
+ * them, so a remote call is only made when the content of an image actually changed.
+ *
+ * A lookup matches the most recently used entry within maxDistance bits of the hash,
+ * so a few noisy bits do not count as a change. A hit hands out the result of another
+ * image, e.g. the identities found in it, so keep maxDistance small: a small hash does
+ * not tell people apart, a different person in the same place may differ in only a few
+ * bits. Entries expire after ttlMillis, which bounds how long such a wrong result can be
+ * reused. The cache is small, a linear scan over it is cheaper than the hashing. Thread safe.
+ * */
+public class PerceptualHashCache<V> {
+
+    private final int capacity;
+    private final int maxDistance;
+    private final long ttlNanos;
+    private final LinkedHashMap<Long, CachedValue<V>> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity      hashes kept, the least recently used one is dropped first
+     * @param maxDistance   differing bits up to which two hashes count as the same content,
+     *                      -1 for no hits at all
+     * @param ttlMillis     time a result is reused for after it was put
+     * */
+    public PerceptualHashCache(int capacity, int maxDistance, long ttlMillis) {
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<Long, CachedValue<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedValue<V>> eldest) {
+                return size() > PerceptualHashCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return  the result cached for a hash close enough to this one, null if there is none
+     * */
+    public synchronized V get(long hash) {
+        final long now = System.nanoTime();
+        V value = null;
+        Long match = null;
+        // Least recently used first, so the last match is the most recently used one
+        final Iterator<Map.Entry<Long, CachedValue<V>>> iterator = entries.entrySet().iterator();
+        while(iterator.hasNext()) {
+            final Map.Entry<Long, CachedValue<V>> entry = iterator.next();
+            if(now - entry.getValue().putNanos > ttlNanos) {
+                iterator.remove();
+            } else if(PerceptualHash.distance(hash, entry.getKey()) <= maxDistance) {
+                match = entry.getKey();
+                value = entry.getValue().value;
+            }
+        }
+
+        if(value == null) {
+            misses.increment();
+        } else {
+            // mark as recently used
+            entries.get(match);
+            hits.increment();
+        }
+        return value;
+    }
+
+    public synchronized void put(long hash, V value) {
+        entries.put(hash, new CachedValue<>(value, System.nanoTime()));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return  fraction of lookups answered from the cache, 0 before the first one
+     * */
+    public double getHitRate() {
+        final long hits = getHits();
+        final long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private static class CachedValue<V> {
+
+        private final V value;
+        private final long putNanos;
+
+        CachedValue(V value, long putNanos) {
+            this.value = value;
+            this.putNanos = putNanos;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.dl4j.prediction;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PredictionSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PredictionSink sink(UploadTarget target, long maxFileBytes, long rollIntervalMillis) {
+        return new PredictionSink(folder.getRoot(), "predictions", "camera/", target,
+                maxFileBytes, rollIntervalMillis, 20);
+    }
+
+    private static String line(int i) {
+        return String.format("%05d,person,0.9", i);
+    }
+
+    /**
+     * @return  the lines of all uploaded files, in file order
+     * */
+    private static List<String> uploadedLines(InMemoryUploadTarget target) {
+        final List<String> lines = new ArrayList<>();
+        for(byte[] object: new TreeMap<>(target.getObjects()).values()) {
+            for(String line: new String(object, StandardCharsets.UTF_8).split(System.lineSeparator())) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static void awaitCondition(String what, BooleanSupplier condition)
+            throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()) {
+            assertTrue(what, System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Uploads to objects once release is counted down, counting down started on every upload.
+     * */
+    private static UploadTarget hanging(InMemoryUploadTarget objects, CountDownLatch started,
+                                        CountDownLatch release) {
+        return (key, file) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch(InterruptedException ie) {
+                throw new IOException(ie);
+            }
+            objects.upload(key, file);
+        };
+    }
+
+    @Test
+    public void filesRollBySize() throws Exception {
+        final InMemoryUploadTarget target = new InMemoryUploadTarget();
+        final int lineBytes = line(0).length() + System.lineSeparator().length();
+        final PredictionSink sink = sink(target, 4 * lineBytes, 60000);
+        final List<String> lines = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            lines.add(line(i));
+            sink.append(line(i));
+        }
+        sink.close();
+
+        // 4, 4 and the 2 lines left at close
+        assertEquals(3, target.getObjects().size());
+        assertEquals(4 * lineBytes, target.getObjects().get("camera/predictions-00000.csv").length);
+        assertEquals(2 * lineBytes, target.getObjects().get("camera/predictions-00002.csv").length);
+        assertEquals(lines, uploadedLines(target));
+        assertEquals(3, sink.getUploadedFiles());
+    }
+
+    @Test
+    public void filesRollByTimeWithoutNewLines() throws Exception {
+        final InMemoryUploadTarget target = new InMemoryUploadTarget();
+        final PredictionSink sink = sink(target, Long.MAX_VALUE, 100);
+        sink.append(line(0));
+
+        // the uploader rolls the file once it is old enough, no further append needed
+        awaitCondition("file rolled and uploaded", () -> target.getObjects().size() == 1);
+        assertEquals(1, sink.getUploadedFiles());
+        sink.append(line(1));
+        sink.close();
+
+        assertEquals(2, target.getObjects().size());
+        assertEquals(2, uploadedLines(target).size());
+    }
+
+    @Test
+    public void filesQueuedDuringAnUploadShipTogether() throws Exception {
+        final InMemoryUploadTarget objects = new InMemoryUploadTarget();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // every line rolls a file
+        final PredictionSink sink = sink(hanging(objects, started, release), 1, 60000);
+        sink.append(line(0));
+        started.await();
+
+        // appending goes on while the upload hangs
+        for(int i = 1; i < 5; i++) {
+            sink.append(line(i));
+        }
+        assertEquals(4, sink.getPendingUploads());
+        assertEquals(0, sink.getUploadedFiles());
+
+        // the uploader takes all of them in its next round
+        release.countDown();
+        awaitCondition("queued files uploaded", () -> sink.getUploadedFiles() == 5);
+        assertEquals(0, sink.getPendingUploads());
+        sink.close();
+        assertEquals(5, objects.getObjects().size());
+    }
+
+    @Test
+    public void closeUploadsTheCurrentAndPendingFiles() throws Exception {
+        final InMemoryUploadTarget objects = new InMemoryUploadTarget();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final PredictionSink sink = sink(hanging(objects, started, release),
+                2 * (line(0).length() + System.lineSeparator().length()), 60000);
+        final List<String> lines = new ArrayList<>();
+        for(int i = 0; i < 7; i++) {
+            lines.add(line(i));
+            sink.append(line(i));
+            if(i == 1) {
+                started.await();
+            }
+        }
+        // two rolled files wait behind the hanging one, the last line is still open
+        assertEquals(2, sink.getPendingUploads());
+
+        final Thread closing = new Thread(() -> {
+            try {
+                sink.close();
+            } catch(IOException ioe) {
+                throw new IllegalStateException(ioe);
+            }
+        });
+        closing.start();
+        closing.join(200);
+        // close waits for the uploads
+        assertTrue(closing.isAlive());
+
+        release.countDown();
+        closing.join(5000);
+        assertFalse(closing.isAlive());
+        assertEquals(4, sink.getUploadedFiles());
+        assertEquals(0, sink.getPendingUploads());
+        assertEquals(lines, uploadedLines(objects));
+    }
+}
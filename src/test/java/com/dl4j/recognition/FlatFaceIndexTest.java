@@ -0,0 +1,117 @@
+package com.dl4j.recognition;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlatFaceIndexTest {
+
+    private static final int DIMENSION = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static float[] randomUnitVector(Random random, int dimension) {
+        final float[] vector = new float[dimension];
+        double norm = 0;
+        for(int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        for(int i = 0; i < dimension; i++) {
+            vector[i] /= Math.sqrt(norm);
+        }
+        return vector;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float dot = 0;
+        for(int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    private static int[] ids(List<FaceIndex.Neighbor> neighbors) {
+        return neighbors.stream().mapToInt(FaceIndex.Neighbor::getId).toArray();
+    }
+
+    @Test
+    public void searchReturnsTheTopKMostSimilarFirst() {
+        final Random random = new Random(42);
+        final float[][] faces = new float[500][];
+        // starts small so the embeddings have to grow
+        final FlatFaceIndex index = new FlatFaceIndex(DIMENSION, 4);
+        for(int id = 0; id < faces.length; id++) {
+            faces[id] = randomUnitVector(random, DIMENSION);
+            index.add("face-" + id, faces[id]);
+        }
+        assertEquals(faces.length, index.size());
+
+        final float[] query = randomUnitVector(random, DIMENSION);
+        final int[] expected = IntStream.range(0, faces.length).boxed()
+                .sorted(Comparator.comparingDouble(id -> -dot(query, faces[id])))
+                .limit(5)
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        final List<FaceIndex.Neighbor> neighbors = index.search(query, 5);
+        assertArrayEquals(expected, ids(neighbors));
+        assertEquals("face-" + expected[0], neighbors.get(0).getLabel());
+        for(int i = 1; i < neighbors.size(); i++) {
+            assertTrue(neighbors.get(i - 1).getSimilarity() >= neighbors.get(i).getSimilarity());
+        }
+    }
+
+    @Test
+    public void searchReturnsAtMostTheSize() {
+        final FlatFaceIndex index = new FlatFaceIndex(DIMENSION);
+        index.add("only", randomUnitVector(new Random(1), DIMENSION));
+
+        assertEquals(1, index.search(randomUnitVector(new Random(2), DIMENSION), 5).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void embeddingsOfAnotherDimensionAreRejected() {
+        new FlatFaceIndex(DIMENSION).add("wrong", new float[DIMENSION + 1]);
+    }
+
+    @Test
+    public void savedIndexLoadsTheSame() throws Exception {
+        final Random random = new Random(7);
+        final FlatFaceIndex index = new FlatFaceIndex(DIMENSION);
+        for(int id = 0; id < 100; id++) {
+            index.add(id % 2 == 0 ? "Zo\u00eb " + id : "face " + id, randomUnitVector(random, DIMENSION));
+        }
+
+        final Path path = folder.getRoot().toPath().resolve("faces.idx");
+        index.save(path);
+        final FlatFaceIndex loaded = FlatFaceIndex.load(path);
+
+        assertEquals(index.size(), loaded.size());
+        assertEquals(index.getDimension(), loaded.getDimension());
+        for(int id = 0; id < index.size(); id++) {
+            assertArrayEquals(index.get(id), loaded.get(id), 0);
+        }
+        final float[] query = randomUnitVector(random, DIMENSION);
+        assertArrayEquals(ids(index.search(query, 10)), ids(loaded.search(query, 10)));
+        assertEquals(index.search(query, 1).get(0).getLabel(), loaded.search(query, 1).get(0).getLabel());
+
+        // saving again replaces the file
+        loaded.add("new", randomUnitVector(random, DIMENSION));
+        loaded.save(path);
+        final FlatFaceIndex reloaded = FlatFaceIndex.load(path);
+        assertEquals(101, reloaded.size());
+        assertEquals("new", reloaded.search(loaded.get(100), 1).get(0).getLabel());
+    }
+}
@@ -0,0 +1,92 @@
+package com.dl4j.recognition;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IvfFaceIndexTest {
+
+    private static final int DIMENSION = 32;
+    private static final int PEOPLE = 40;
+    private static final int FACES_PER_PERSON = 25;
+
+    /**
+     * Faces of one person lie close to each other, like the embeddings of a face model.
+     * */
+    private static FlatFaceIndex gallery(Random random) {
+        final FlatFaceIndex faces = new FlatFaceIndex(DIMENSION);
+        for(int person = 0; person < PEOPLE; person++) {
+            final float[] center = FlatFaceIndexTest.randomUnitVector(random, DIMENSION);
+            for(int i = 0; i < FACES_PER_PERSON; i++) {
+                faces.add("person-" + person, near(random, center, 0.05));
+            }
+        }
+        return faces;
+    }
+
+    private static float[] near(Random random, float[] center, double noise) {
+        final float[] vector = new float[center.length];
+        double norm = 0;
+        for(int i = 0; i < vector.length; i++) {
+            vector[i] = (float) (center[i] + noise * random.nextGaussian());
+            norm += vector[i] * vector[i];
+        }
+        for(int i = 0; i < vector.length; i++) {
+            vector[i] /= Math.sqrt(norm);
+        }
+        return vector;
+    }
+
+    @Test
+    public void probingEveryListIsExact() {
+        final Random random = new Random(42);
+        final FlatFaceIndex faces = gallery(random);
+        final IvfFaceIndex index = new IvfFaceIndex(faces, 30, 30);
+
+        for(int query = 0; query < 20; query++) {
+            final float[] embedding = FlatFaceIndexTest.randomUnitVector(random, DIMENSION);
+            final List<FaceIndex.Neighbor> expected = faces.search(embedding, 5);
+            final List<FaceIndex.Neighbor> actual = index.search(embedding, 5);
+            for(int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            }
+        }
+    }
+
+    @Test
+    public void recallOfTheNearestFace() {
+        final Random random = new Random(42);
+        final FlatFaceIndex faces = gallery(random);
+        final IvfFaceIndex index = new IvfFaceIndex(faces, 30, 3);
+
+        int found = 0;
+        final int queries = 200;
+        for(int query = 0; query < queries; query++) {
+            final float[] embedding = near(random, faces.get(random.nextInt(faces.size())), 0.02);
+            if(index.search(embedding, 1).get(0).getId() == faces.search(embedding, 1).get(0).getId()) {
+                found++;
+            }
+        }
+        assertTrue("recall@1 " + found + "/" + queries, found >= queries * 0.9);
+    }
+
+    @Test
+    public void facesAddedAfterTrainingAreFound() {
+        final Random random = new Random(42);
+        final IvfFaceIndex index = new IvfFaceIndex(gallery(random), 30, 3);
+        final float[] newcomer = FlatFaceIndexTest.randomUnitVector(random, DIMENSION);
+        index.add("newcomer", newcomer);
+
+        assertEquals(PEOPLE * FACES_PER_PERSON + 1, index.size());
+        assertEquals("newcomer", index.search(newcomer, 1).get(0).getLabel());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyGalleryIsRejected() {
+        new IvfFaceIndex(new FlatFaceIndex(DIMENSION), 4, 1);
+    }
+}
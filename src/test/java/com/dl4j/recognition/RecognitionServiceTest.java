@@ -0,0 +1,146 @@
+package com.dl4j.recognition;
+
+import com.dl4j.metrics.MetricsRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecognitionServiceTest {
+
+    private final MetricsRegistry metrics = new MetricsRegistry("test");
+    private RecognitionService service;
+
+    @After
+    public void close() {
+        if(service != null) {
+            service.close();
+        }
+    }
+
+    private RecognitionService service(int maxInFlight, long timeoutMillis, int maxAttempts, CircuitBreaker breaker) {
+        service = new RecognitionService(null, null, maxInFlight, timeoutMillis, maxAttempts, 10, breaker, metrics);
+        return service;
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch(ExecutionException ee) {
+            return ee.getCause();
+        }
+        fail("call did not fail");
+        return null;
+    }
+
+    @Test
+    public void failedAttemptsAreRetried() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final CompletableFuture<String> result = service(4, 5000, 3, new CircuitBreaker(5, 60000))
+                .submit(null, () -> {
+                    if(attempts.incrementAndGet() < 3) {
+                        throw new IllegalStateException("unavailable");
+                    }
+                    return "ok";
+                });
+
+        assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+        assertEquals(2, metrics.counter("recognition_retries").sum());
+    }
+
+    @Test
+    public void invalidRequestsAreNotRetried() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+        final CompletableFuture<String> result = service(4, 5000, 3, breaker)
+                .submit(null, () -> {
+                    attempts.incrementAndGet();
+                    throw new IllegalArgumentException("bad image");
+                });
+
+        assertTrue(failure(result) instanceof IllegalArgumentException);
+        assertEquals(1, attempts.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void slowAttemptsTimeOut() throws Exception {
+        final long start = System.currentTimeMillis();
+        final CompletableFuture<String> result = service(4, 50, 1, new CircuitBreaker(5, 60000))
+                .submit(null, () -> {
+                    Thread.sleep(10000);
+                    return "late";
+                });
+
+        assertTrue(failure(result) instanceof TimeoutException);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, metrics.counter("recognition_timeouts").sum());
+    }
+
+    @Test
+    public void callsOverMaxInFlightAreRejected() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        service(1, 5000, 1, new CircuitBreaker(5, 60000));
+        final CompletableFuture<String> first = service.submit(null, () -> {
+            release.await();
+            return "first";
+        });
+
+        assertTrue(failure(service.submit(null, () -> "second")) instanceof RejectedExecutionException);
+        release.countDown();
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callsWithTheSameKeyShareOneCall() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        service(4, 5000, 1, new CircuitBreaker(5, 60000));
+        final CompletableFuture<Integer> first = service.submit("key", () -> {
+            release.await();
+            return attempts.incrementAndGet();
+        });
+        final CompletableFuture<Integer> second = service.submit("key", attempts::incrementAndGet);
+
+        assertSame(first, second);
+        release.countDown();
+        assertEquals(1, (int) second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, metrics.counter("recognition_coalesced").sum());
+    }
+
+    @Test
+    public void openBreakerStopsRetriesAndRejectsCalls() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+        service(4, 5000, 3, breaker);
+        final CompletableFuture<String> result = service.submit(null, () -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("unavailable");
+        });
+
+        assertTrue(failure(result) instanceof IllegalStateException);
+        assertEquals(1, attempts.get());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(failure(service.submit(null, () -> "next")) instanceof RejectedExecutionException);
+    }
+
+    @Test
+    public void callsWithoutABackendFail() throws Exception {
+        service(4, 5000, 1, new CircuitBreaker(5, 60000));
+
+        assertTrue(failure(service.detectText(new byte[] {1})) instanceof IllegalStateException);
+        assertTrue(failure(service.indexFaces("faces", new byte[] {1})) instanceof IllegalStateException);
+    }
+}
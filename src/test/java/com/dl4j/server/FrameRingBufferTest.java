@@ -0,0 +1,63 @@
+package com.dl4j.server;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FrameRingBufferTest {
+
+    @Test
+    public void latestIsNullBeforeTheFirstFrame() {
+        final FrameRingBuffer buffer = new FrameRingBuffer(3);
+        assertNull(buffer.latest());
+        assertNull(buffer.get(1));
+        assertEquals(0, buffer.getSequence());
+    }
+
+    @Test
+    public void overwrittenFramesAreNotReturned() {
+        final FrameRingBuffer buffer = new FrameRingBuffer(3);
+        final Mat[] mats = new Mat[5];
+        for(int i = 0; i < mats.length; i++) {
+            mats[i] = new Mat();
+            assertEquals(i + 1, buffer.publish(mats[i]));
+        }
+
+        // 4 and 5 went into the slots of 1 and 2
+        assertNull(buffer.get(1));
+        assertNull(buffer.get(2));
+        for(long sequence = 3; sequence <= 5; sequence++) {
+            final FrameRingBuffer.Entry entry = buffer.get(sequence);
+            assertEquals(sequence, entry.getSequence());
+            assertSame(mats[(int) sequence - 1], entry.getMat());
+        }
+        assertNull(buffer.get(6));
+        assertSame(mats[4], buffer.latest().getMat());
+    }
+
+    @Test
+    public void historyHoldsAtMostTheCapacityOldestFirst() {
+        final FrameRingBuffer buffer = new FrameRingBuffer(3);
+        for(int i = 0; i < 5; i++) {
+            buffer.publish(new Mat());
+        }
+
+        final List<FrameRingBuffer.Entry> history = buffer.history(10);
+        assertEquals(3, history.size());
+        assertEquals(3, history.get(0).getSequence());
+        assertEquals(5, history.get(2).getSequence());
+
+        assertEquals(2, buffer.history(2).size());
+        assertEquals(4, buffer.history(2).get(0).getSequence());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new FrameRingBuffer(0);
+    }
+}
@@ -0,0 +1,240 @@
+package com.dl4j.server;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MjpegStreamServerTest {
+
+    private final FramePublisher publisher = new FramePublisher("boundary");
+    private MjpegStreamServer server;
+    private int port;
+
+    @After
+    public void close() {
+        publisher.close();
+        if(server != null) {
+            server.close();
+        }
+    }
+
+    private void start(int maxConnections, long idleTimeoutMillis) throws IOException {
+        try(ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new MjpegStreamServer(port, publisher, maxConnections, idleTimeoutMillis);
+        server.start();
+    }
+
+    private Socket connect(int receiveBufferSize) throws IOException {
+        final Socket socket = new Socket();
+        if(receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        socket.connect(new InetSocketAddress("localhost", port));
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void request(Socket socket, String target) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        out.write(("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void awaitCondition(String what, BooleanSupplier condition)
+            throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()) {
+            assertTrue(what, System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Mat noise(Random random) {
+        // noise compresses badly, so every frame is some hundred kilobytes
+        final Mat mat = new Mat(480, 640, CV_8UC3);
+        final byte[] pixels = new byte[480 * 640 * 3];
+        random.nextBytes(pixels);
+        mat.data().put(pixels);
+        return mat;
+    }
+
+    @Test
+    public void connectionsOverTheLimitGet503() throws Exception {
+        start(1, 10000);
+        try(Socket first = connect(0)) {
+            awaitCondition("first connection", () -> server.getConnections() == 1);
+
+            try(Socket second = connect(0)) {
+                final byte[] response = new byte[64];
+                final int read = second.getInputStream().read(response);
+                assertTrue(new String(response, 0, read, StandardCharsets.US_ASCII)
+                        .startsWith("HTTP/1.0 503"));
+                assertEquals(-1, second.getInputStream().read());
+            }
+            // the first connection is still served
+            request(first, "/");
+            awaitCondition("first viewer streaming", () -> server.getViewers() == 1);
+            assertEquals(1, server.getConnections());
+        }
+    }
+
+    @Test
+    public void idleConnectionsAreClosed() throws Exception {
+        start(4, 200);
+        try(Socket socket = connect(0)) {
+            // never sends its request
+            final long start = System.currentTimeMillis();
+            assertEquals(-1, socket.getInputStream().read());
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            awaitCondition("idle connection closed", () -> server.getConnections() == 0);
+        }
+    }
+
+    @Test
+    public void viewersGetTheFramesPacedByFps() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        try(ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new MjpegStreamServer(port, 4, 10000, clock::get);
+        server.register("/", publisher);
+        server.start();
+        final Mat[] frames = new Mat[2];
+        for(int i = 0; i < frames.length; i++) {
+            frames[i] = new Mat(48, 64, CV_8UC3, new Scalar(i * 100, i * 100, i * 100, 0));
+        }
+
+        try(Socket socket = connect(0)) {
+            request(socket, "/?fps=5");
+            awaitCondition("viewer streaming", () -> server.getViewers() == 1);
+            final PartReader reader = new PartReader(socket);
+            publisher.publish(frames[0]);
+            assertEquals(1, reader.read(5000, lengths -> lengths.size() == 1).size());
+
+            // while the clock stands still, new frames wait for the next 200 ms
+            for(int i = 1; i < 5; i++) {
+                publisher.publish(frames[i % frames.length]);
+            }
+            assertEquals(1, reader.read(300, lengths -> lengths.size() > 1).size());
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            publisher.publish(frames[1]);
+            assertEquals(1, reader.read(300, lengths -> lengths.size() > 1).size());
+
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            publisher.publish(frames[0]);
+            assertEquals(2, reader.read(5000, lengths -> lengths.size() > 1).size());
+            assertEquals(1, server.getViewers());
+        }
+    }
+
+    @Test
+    public void slowViewersSkipFrames() throws Exception {
+        start(4, 10000);
+        final Random random = new Random(42);
+        publisher.publish(noise(random));
+
+        try(Socket socket = connect(4096)) {
+            request(socket, "/");
+            awaitCondition("viewer streaming", () -> server.getViewers() == 1);
+
+            // the viewer does not read while more frames are published than the socket
+            // buffers of both sides hold
+            final int published = 200;
+            for(int i = 1; i < published; i++) {
+                publisher.publish(noise(random));
+                Thread.sleep(5);
+            }
+            final int latest = publisher.encode(FramePublisher.Rendition.ORIGINAL).getJpeg().remaining();
+
+            // the mailbox holds the latest frame, however long the viewer took
+            final List<Integer> lengths = new PartReader(socket).read(10000,
+                    parts -> !parts.isEmpty() && parts.get(parts.size() - 1) == latest);
+            assertFalse("no frame received", lengths.isEmpty());
+            assertEquals(latest, (int) lengths.get(lengths.size() - 1));
+            assertTrue("received " + lengths.size() + " of " + published, lengths.size() < published);
+        }
+    }
+
+    /**
+     * Reads a viewer's stream and collects the Content-Length of every part that came.
+     * */
+    private static class PartReader {
+
+        private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[65536];
+        private final List<Integer> lengths = new ArrayList<>();
+        private int matched;
+        private int length = -1;
+
+        PartReader(Socket socket) throws IOException {
+            socket.setSoTimeout(50);
+            this.in = socket.getInputStream();
+        }
+
+        /**
+         * Read until done holds for the lengths so far, or for at most millis.
+         * @return  the lengths of the parts read so far, oldest first
+         * */
+        List<Integer> read(long millis, Predicate<List<Integer>> done) throws IOException {
+            final long end = System.currentTimeMillis() + millis;
+            while(!done.test(lengths) && System.currentTimeMillis() < end) {
+                final int read;
+                try {
+                    read = in.read(buffer);
+                } catch(SocketTimeoutException ste) {
+                    continue;
+                }
+                if(read < 0) {
+                    break;
+                }
+                for(int i = 0; i < read; i++) {
+                    parse(buffer[i]);
+                }
+            }
+            return lengths;
+        }
+
+        private void parse(byte b) {
+            if(length >= 0) {
+                if(b >= '0' && b <= '9') {
+                    length = length * 10 + (b - '0');
+                } else {
+                    lengths.add(length);
+                    length = -1;
+                }
+                return;
+            }
+            matched = b == CONTENT_LENGTH[matched] ? matched + 1 : (b == CONTENT_LENGTH[0] ? 1 : 0);
+            if(matched == CONTENT_LENGTH.length) {
+                matched = 0;
+                length = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.dl4j.snapshot;
+
+import com.dl4j.metrics.MetricsRegistry;
+import com.dl4j.server.FramePublisher;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.Scalar;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotUploaderTest {
+
+    private final FramePublisher publisher = new FramePublisher("boundary");
+    private Thread thread;
+
+    @After
+    public void close() {
+        publisher.close();
+    }
+
+    private SnapshotUploader start(SnapshotStore store, long intervalMillis) {
+        final SnapshotUploader uploader = new SnapshotUploader(
+                publisher, store, "current-frame.jpg", intervalMillis, new MetricsRegistry("test"));
+        thread = new Thread(uploader);
+        thread.start();
+        return uploader;
+    }
+
+    private static Mat frame(int brightness) {
+        return new Mat(48, 64, CV_8UC3, new Scalar(brightness, brightness, brightness, 0));
+    }
+
+    /**
+     * Publish a new frame every 10 ms for durationMillis.
+     * */
+    private void publishFrames(long durationMillis, boolean changing) throws InterruptedException {
+        final Mat still = frame(128);
+        final long end = System.currentTimeMillis() + durationMillis;
+        for(int i = 0; System.currentTimeMillis() < end; i++) {
+            publisher.publish(changing ? frame(i % 256) : still);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void uploadsAtMostOncePerInterval() throws Exception {
+        final InMemorySnapshotStore store = new InMemorySnapshotStore();
+        final SnapshotUploader uploader = start(store, 100);
+        publishFrames(1000, true);
+        uploader.close();
+        thread.join(1000);
+
+        assertTrue("puts " + store.getPuts(), store.getPuts() >= 5 && store.getPuts() <= 12);
+        assertEquals(store.getPuts(), uploader.getUploads());
+        assertNotNull(store.getObjects().get("current-frame.jpg"));
+    }
+
+    @Test
+    public void unchangedFramesAreNotUploadedAgain() throws Exception {
+        final InMemorySnapshotStore store = new InMemorySnapshotStore();
+        final SnapshotUploader uploader = start(store, 50);
+        publishFrames(500, false);
+        uploader.close();
+        thread.join(1000);
+
+        assertEquals(1, store.getPuts());
+        assertTrue(uploader.getUnchanged() > 0);
+    }
+
+    @Test
+    public void failedUploadsAreRetriedWithTheNextFrame() throws Exception {
+        final AtomicInteger puts = new AtomicInteger();
+        final SnapshotUploader uploader = start((key, jpeg) -> {
+            if(puts.incrementAndGet() == 1) {
+                throw new IOException("unavailable");
+            }
+        }, 50);
+        publishFrames(500, true);
+        uploader.close();
+        thread.join(1000);
+
+        assertEquals(1, uploader.getFailures());
+        assertTrue(uploader.getUploads() > 0);
+    }
+
+    @Test
+    public void closeStopsTheUploader() throws Exception {
+        final SnapshotUploader uploader = start(new InMemorySnapshotStore(), 10000);
+        publisher.publish(frame(0));
+        Thread.sleep(100);
+
+        final long start = System.currentTimeMillis();
+        uploader.close();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void closingThePublisherStopsTheUploader() throws Exception {
+        start(new InMemorySnapshotStore(), 50);
+        publisher.close();
+        thread.join(1000);
+
+        assertFalse(thread.isAlive());
+    }
+}
@@ -0,0 +1,68 @@
+package com.dl4j.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PerceptualHashCacheTest {
+
+    private static final long TTL_MILLIS = 60000;
+
+    @Test
+    public void hashesWithinMaxDistanceHit() {
+        final PerceptualHashCache<String> cache = new PerceptualHashCache<>(4, 2, TTL_MILLIS);
+        cache.put(0L, "a");
+
+        assertEquals("a", cache.get(0L));
+        assertEquals("a", cache.get(0b11L));
+        assertNull(cache.get(0b111L));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void minusOneNeverHits() {
+        final PerceptualHashCache<String> cache = new PerceptualHashCache<>(4, -1, TTL_MILLIS);
+        cache.put(0L, "a");
+
+        assertNull(cache.get(0L));
+    }
+
+    @Test
+    public void mostRecentlyUsedMatchWins() {
+        final PerceptualHashCache<String> cache = new PerceptualHashCache<>(4, 2, TTL_MILLIS);
+        cache.put(0L, "a");
+        cache.put(1L, "b");
+
+        // within 1 bit of "a" and 2 bits of "b"
+        assertEquals("b", cache.get(0b10L));
+        cache.put(0L, "a");
+        assertEquals("a", cache.get(0b10L));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsDropped() {
+        final PerceptualHashCache<String> cache = new PerceptualHashCache<>(2, 2, TTL_MILLIS);
+        cache.put(0L, "a");
+        cache.put(-1L, "b");
+        cache.get(0L);
+        cache.put(0xFFFFFFFFL, "c");
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(-1L));
+        assertEquals("a", cache.get(0L));
+        assertEquals("c", cache.get(0xFFFFFFFFL));
+    }
+
+    @Test
+    public void entriesExpire() throws InterruptedException {
+        final PerceptualHashCache<String> cache = new PerceptualHashCache<>(4, 2, 50);
+        cache.put(0L, "a");
+        Thread.sleep(100);
+
+        assertNull(cache.get(0L));
+        assertEquals(0, cache.size());
+    }
+}